@@ -0,0 +1,161 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.ListingCacheService;
+import com.csetutorials.vuedisk.services.SizeIndexService;
+import com.csetutorials.vuedisk.services.SizeService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the entries of a 100k-file tree the way listing and size used to, with separate {@code isDirectory()}
+ * and {@code length()} calls on {@link File}, against one attribute read per entry, and both against the services
+ * as they are now.
+ * <p>
+ * The old listing stats every file five times and every directory four times, the new one once. JMH can't see
+ * syscalls, so count them by running the benchmark under strace:
+ * <pre>
+ * strace -f -c -e trace=%stat,getdents64 mvn -P benchmarks test-compile exec:exec \
+ *     -Djmh.args="AttributeBenchmark -f 1 -wi 0 -i 1"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AttributeBenchmark {
+
+	private static final int DIRS = 100;
+
+	private static final int FILES_PER_DIR = 1000;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private FileService fileService;
+
+	private ListingCacheService listingCache;
+
+	private SizeService sizeService;
+
+	private SizeIndexService sizeIndex;
+
+	private File tree;
+
+	private File[] dirs;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		tree = baseDir.resolve("tree").toFile();
+		Fixtures.tree(tree.toPath(), DIRS, FILES_PER_DIR, 16);
+		dirs = tree.listFiles();
+		context = Fixtures.start(baseDir, "--vuedisk.content-type.cache-size=0");
+		fileService = context.getBean(FileService.class);
+		listingCache = context.getBean(ListingCacheService.class);
+		sizeService = context.getBean(SizeService.class);
+		sizeIndex = context.getBean(SizeIndexService.class);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	/**
+	 * The calls the listing made per entry before it read attributes once.
+	 */
+	@OperationsPerInvocation(DIRS * FILES_PER_DIR)
+	@Benchmark
+	public void fileStats(Blackhole blackhole) {
+		for (File dir : dirs) {
+			for (File file : dir.listFiles()) {
+				blackhole.consume(file.isDirectory());
+				blackhole.consume(file.length());
+				blackhole.consume(file.length());
+				if (!file.isDirectory()) {
+					blackhole.consume(file.length() <= 5000000);
+				}
+			}
+		}
+	}
+
+	@OperationsPerInvocation(DIRS * FILES_PER_DIR)
+	@Benchmark
+	public void readAttributes(Blackhole blackhole) throws IOException {
+		for (File dir : dirs) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+				for (Path path : stream) {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					blackhole.consume(attributes.isDirectory());
+					blackhole.consume(attributes.size());
+					blackhole.consume(attributes.lastModifiedTime());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Every directory listed by {@link FileService} with its listing cache dropped first.
+	 */
+	@OperationsPerInvocation(DIRS * FILES_PER_DIR)
+	@Benchmark
+	public void listing(Blackhole blackhole) {
+		for (File dir : dirs) {
+			listingCache.invalidate(dir.toPath());
+			blackhole.consume(fileService.list(dir));
+		}
+	}
+
+	/**
+	 * The size walk as it was before it read attributes once.
+	 */
+	@Benchmark
+	public long fileSize() {
+		long bytes = 0;
+		Deque<File> stack = new ArrayDeque<>(List.of(tree));
+		while (!stack.isEmpty()) {
+			File file = stack.pop();
+			if (!file.exists()) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				for (File child : file.listFiles()) {
+					stack.push(child);
+				}
+			} else {
+				bytes += file.length();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * {@link SizeService} with the size index dropped, so the whole tree is walked.
+	 */
+	@Benchmark
+	public long size() {
+		sizeIndex.invalidate(tree.toPath());
+		JobProgress progress = new JobProgress();
+		sizeService.size(progress, baseDir.toFile(), List.of(tree.getName()));
+		return progress.getBytes();
+	}
+
+}
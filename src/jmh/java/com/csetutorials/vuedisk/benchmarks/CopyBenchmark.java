@@ -0,0 +1,70 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.services.TransferService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying 16 MB as many small files and as a few large ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CopyBenchmark {
+
+	private static final int TOTAL_BYTES = 16 * 1024 * 1024;
+
+	@Param({"4096", "1048576"})
+	private int fileSize;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private TransferService transferService;
+
+	private File destination;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		Fixtures.tree(baseDir.resolve("source"), 1, TOTAL_BYTES / fileSize, fileSize);
+		context = Fixtures.start(baseDir);
+		transferService = context.getBean(TransferService.class);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@Setup(Level.Invocation)
+	public void createDestination() throws IOException {
+		destination = Files.createDirectories(baseDir.resolve("destination")).toFile();
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteDestination() throws IOException {
+		Fixtures.delete(destination.toPath());
+	}
+
+	@Benchmark
+	public long copy() {
+		JobProgress progress = new JobProgress();
+		transferService.copy(progress, baseDir.resolve("source").toFile(), destination, List.of("dir-0000"));
+		return progress.getBytes();
+	}
+
+}
@@ -0,0 +1,102 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.services.ExtensionService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classifying listing entries with {@link ExtensionService#classify} against the previous way, a lower cased
+ * substring looked up in one hash set per kind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtensionBenchmark {
+
+	private static final String[] NAMES = {"IMG_2023_0001.JPG", "notes.md", "Holiday Video.mp4", "archive.tar.gz",
+			"Makefile", "report-final-v2.docx", "song.MP3", "photo.heic", "index.html", "data.json", "README",
+			"screenshot.png", "backup.", "Main.java", "clip.webm", "diagram.svg"};
+
+	@OperationsPerInvocation(16)
+	@Benchmark
+	public void classify(Context context, Blackhole blackhole) {
+		for (String name : NAMES) {
+			blackhole.consume(context.extensionService.classify(name));
+		}
+	}
+
+	@OperationsPerInvocation(16)
+	@Benchmark
+	public void hashSets(Context context, Blackhole blackhole) {
+		for (String name : NAMES) {
+			blackhole.consume(context.text.contains(extension(name)));
+			blackhole.consume(context.image.contains(extension(name)));
+			blackhole.consume(context.audio.contains(extension(name)));
+			blackhole.consume(context.video.contains(extension(name)));
+		}
+	}
+
+	private static String extension(String fileName) {
+		int dotIndex = fileName.lastIndexOf('.');
+		if (dotIndex == -1 || dotIndex == fileName.length() - 1) {
+			return "";
+		}
+		return fileName.substring(dotIndex + 1).toLowerCase();
+	}
+
+	@State(Scope.Benchmark)
+	public static class Context {
+
+		private Path baseDir;
+
+		private ConfigurableApplicationContext context;
+
+		private ExtensionService extensionService;
+
+		private Set<String> text;
+
+		private Set<String> image;
+
+		private Set<String> audio;
+
+		private Set<String> video;
+
+		@Setup
+		public void setUp() throws IOException, ReflectiveOperationException {
+			baseDir = Fixtures.tempDir();
+			context = Fixtures.start(baseDir);
+			extensionService = context.getBean(ExtensionService.class);
+			text = extensions("TEXT_EXTENSIONS");
+			image = extensions("IMAGE_EXTENSIONS");
+			audio = extensions("AUDIO_EXTENSIONS");
+			video = extensions("VIDEO_EXTENSIONS");
+		}
+
+		@TearDown
+		public void tearDown() throws IOException {
+			context.close();
+			Fixtures.delete(baseDir);
+		}
+
+		@SuppressWarnings("unchecked")
+		private Set<String> extensions(String field) throws ReflectiveOperationException {
+			Field list = ExtensionService.class.getDeclaredField(field);
+			list.setAccessible(true);
+			return new HashSet<>((List<String>) list.get(null));
+		}
+
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.VueDiskApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic data for the benchmarks, generated from a fixed seed so every run works on the same bytes, and the
+ * application context they run against.
+ */
+final class Fixtures {
+
+	private static final byte[] TEXT = ("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor "
+			+ "incididunt ut labore et dolore magna aliqua.\n").getBytes(StandardCharsets.US_ASCII);
+
+	private static final String[] EXTENSIONS = {"txt", "jpg", "log", "mp4", "json", "bin", "md", "png"};
+
+	private Fixtures() {
+	}
+
+	/**
+	 * Starts VueDisk without its web server on {@code baseDir}, with the background indexers and pregeneration off
+	 * so they don't compete with what is being measured, and any further {@code --name=value} settings.
+	 */
+	static ConfigurableApplicationContext start(Path baseDir, String... settings) {
+		List<String> args = new ArrayList<>(List.of("--base.dir=" + baseDir.toAbsolutePath(),
+				"--vuedisk.search.enabled=false",
+				"--vuedisk.thumbnails.pregenerate.enabled=false",
+				"--logging.level.root=WARN"));
+		args.addAll(List.of(settings));
+		return new SpringApplicationBuilder(VueDiskApplication.class)
+				.web(WebApplicationType.NONE)
+				.logStartupInfo(false)
+				.run(args.toArray(String[]::new));
+	}
+
+	static Path tempDir() throws IOException {
+		return Files.createTempDirectory("vuedisk-benchmark");
+	}
+
+	/**
+	 * {@code dirs} directories of {@code filesPerDir} files of {@code fileSize} bytes each.
+	 */
+	static void tree(Path root, int dirs, int filesPerDir, int fileSize) throws IOException {
+		Random random = new Random(dirs * 31L + filesPerDir);
+		for (int d = 0; d < dirs; d++) {
+			Path dir = root.resolve(String.format("dir-%04d", d));
+			Files.createDirectories(dir);
+			for (int f = 0; f < filesPerDir; f++) {
+				Files.write(dir.resolve(String.format("file-%06d.%s", f, EXTENSIONS[f % EXTENSIONS.length])),
+						content(random, fileSize));
+			}
+		}
+	}
+
+	/**
+	 * Half text, half random bytes, so compression has something to do but doesn't get it all for free.
+	 */
+	static byte[] content(Random random, int size) {
+		byte[] bytes = new byte[size];
+		int half = size / 2;
+		for (int i = 0; i < half; i++) {
+			bytes[i] = TEXT[i % TEXT.length];
+		}
+		byte[] noise = new byte[size - half];
+		random.nextBytes(noise);
+		System.arraycopy(noise, 0, bytes, half, noise.length);
+		return bytes;
+	}
+
+	/**
+	 * A photo-like JPEG: smooth gradients with some noise, which is what makes decoding and scaling cost what
+	 * they do for real pictures.
+	 */
+	static void image(Path file, int width, int height) throws IOException {
+		Random random = new Random(width * 31L + height);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		graphics.setPaint(new GradientPaint(0, 0, new Color(30, 90, 160), width, height, new Color(230, 180, 60)));
+		graphics.fillRect(0, 0, width, height);
+		for (int i = 0; i < 200; i++) {
+			graphics.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 80));
+			graphics.fillOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(width / 4),
+					20 + random.nextInt(height / 4));
+		}
+		graphics.dispose();
+		for (int i = 0; i < width * height / 50; i++) {
+			image.setRGB(random.nextInt(width), random.nextInt(height), random.nextInt());
+		}
+		Files.createDirectories(file.getParent());
+		ImageIO.write(image, "jpg", file.toFile());
+	}
+
+	static void delete(Path root) throws IOException {
+		if (!Files.exists(root)) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+}
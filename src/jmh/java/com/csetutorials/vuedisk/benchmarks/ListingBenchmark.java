@@ -0,0 +1,77 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.beans.FilesListObj;
+import com.csetutorials.vuedisk.beans.ListingPage;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.ListingCacheService;
+import com.csetutorials.vuedisk.services.PagedListingService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing a large directory from the listing cache, from disk, and one page of it. The files have content and
+ * the content-type cache is off, so a listing that starts reading files shows up in {@code uncached}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+
+	@Param({"1000", "10000"})
+	private int files;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private FileService fileService;
+
+	private ListingCacheService listingCache;
+
+	private PagedListingService pagedListingService;
+
+	private File dir;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		Fixtures.tree(baseDir, 1, files, 4096);
+		context = Fixtures.start(baseDir, "--vuedisk.content-type.cache-size=0");
+		fileService = context.getBean(FileService.class);
+		listingCache = context.getBean(ListingCacheService.class);
+		pagedListingService = context.getBean(PagedListingService.class);
+		dir = baseDir.resolve("dir-0000").toFile();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@Benchmark
+	public List<FilesListObj> cached() {
+		return fileService.list(dir);
+	}
+
+	@Benchmark
+	public List<FilesListObj> uncached() {
+		listingCache.invalidate(dir.toPath());
+		return fileService.list(dir);
+	}
+
+	@Benchmark
+	public ListingPage firstPage() throws IOException {
+		return pagedListingService.list(dir, 100, null, "name", "asc");
+	}
+
+}
@@ -0,0 +1,65 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.services.SizeIndexService;
+import com.csetutorials.vuedisk.services.SizeService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizing a tree by walking it, and with the totals of its directories already in the size index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SizeBenchmark {
+
+	@Param({"false", "true"})
+	private boolean indexed;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private SizeService sizeService;
+
+	private SizeIndexService sizeIndex;
+
+	private File tree;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		tree = baseDir.resolve("tree").toFile();
+		Fixtures.tree(tree.toPath(), 100, 100, 16);
+		context = Fixtures.start(baseDir);
+		sizeService = context.getBean(SizeService.class);
+		sizeIndex = context.getBean(SizeIndexService.class);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@Benchmark
+	public long size() {
+		if (!indexed) {
+			sizeIndex.invalidate(tree.toPath());
+		}
+		JobProgress progress = new JobProgress();
+		sizeService.size(progress, baseDir.toFile(), List.of(tree.getName()));
+		return progress.getBytes();
+	}
+
+}
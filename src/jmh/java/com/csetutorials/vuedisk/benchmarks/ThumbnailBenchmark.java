@@ -0,0 +1,68 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.services.ThumbnailService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating a thumbnail of a 12 MP photo, which decodes, scales and encodes it, and getting one which already
+ * exists.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ThumbnailBenchmark {
+
+	@Param({"small", "large"})
+	private String size;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private ThumbnailService thumbnailService;
+
+	private File image;
+
+	private long version;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		image = baseDir.resolve("photos").resolve("photo.jpg").toFile();
+		Fixtures.image(image.toPath(), 4000, 3000);
+		context = Fixtures.start(baseDir);
+		thumbnailService = context.getBean(ThumbnailService.class);
+		version = image.lastModified();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@Benchmark
+	public File generate() throws IOException {
+		// Thumbnails are kept per version of the image, a new mtime makes it a new version
+		version += 1000;
+		if (!image.setLastModified(version)) {
+			throw new IOException("Couldn't touch " + image);
+		}
+		return thumbnailService.getThumbnail(image, size);
+	}
+
+	@Benchmark
+	public File existing() throws IOException {
+		return thumbnailService.getThumbnail(image, size);
+	}
+
+}
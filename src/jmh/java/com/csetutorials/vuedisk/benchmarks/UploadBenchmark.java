@@ -0,0 +1,72 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.services.UploadService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploading a 16 MB file in chunks through the single-request protocol, from the first chunk to the merged file
+ * in place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+	private static final int TOTAL_BYTES = 16 * 1024 * 1024;
+
+	@Param({"1048576", "8388608"})
+	private int chunkSize;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private UploadService uploadService;
+
+	private MockMultipartFile[] chunks;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		Files.createDirectories(baseDir.resolve("uploads"));
+		context = Fixtures.start(baseDir);
+		uploadService = context.getBean(UploadService.class);
+		Random random = new Random(chunkSize);
+		chunks = new MockMultipartFile[TOTAL_BYTES / chunkSize];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new MockMultipartFile("file", Fixtures.content(random, chunkSize));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteUpload() throws IOException {
+		Files.deleteIfExists(baseDir.resolve("uploads").resolve("upload.bin"));
+	}
+
+	@Benchmark
+	public void upload() throws IOException {
+		String id = UUID.randomUUID().toString();
+		for (int i = 0; i < chunks.length; i++) {
+			uploadService.upload(chunks[i], id, i + 1, chunks.length, chunkSize, TOTAL_BYTES, "/uploads", "upload.bin");
+		}
+	}
+
+}
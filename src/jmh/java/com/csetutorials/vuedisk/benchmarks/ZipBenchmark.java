@@ -0,0 +1,63 @@
+package com.csetutorials.vuedisk.benchmarks;
+
+import com.csetutorials.vuedisk.services.ZipService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zipping a 16 MB tree of small files, deflated and stored, into a stream that discards it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+	@Param({"false", "true"})
+	private boolean store;
+
+	private Path baseDir;
+
+	private ConfigurableApplicationContext context;
+
+	private ZipService zipService;
+
+	@Setup
+	public void setUp() throws IOException {
+		baseDir = Fixtures.tempDir();
+		Fixtures.tree(baseDir.resolve("tree"), 16, 64, 16 * 1024);
+		context = Fixtures.start(baseDir);
+		zipService = context.getBean(ZipService.class);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		context.close();
+		Fixtures.delete(baseDir);
+	}
+
+	@Benchmark
+	public void zip(Blackhole blackhole) throws IOException {
+		zipService.write(baseDir.toFile(), List.of("tree"), new OutputStream() {
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+
+			@Override
+			public void write(byte[] bytes, int offset, int length) {
+				blackhole.consume(length);
+			}
+		}, store);
+	}
+
+}
@@ -10,12 +10,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.core.task.support.TaskExecutorAdapter;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 import java.util.concurrent.Executors;
 
 @SpringBootApplication
 @Log4j2
 @EnableAsync
+@EnableScheduling
 public class VueDiskApplication {
 
 	public static void main(String[] args) {
@@ -0,0 +1,21 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Published whenever VueDisk itself creates, modifies, moves or removes files. Each path is the root of a
+ * changed subtree; listeners should treat the path, everything below it and its parent directory as stale.
+ */
+@Getter
+public class FileChangeEvent {
+
+	private final List<Path> paths;
+
+	public FileChangeEvent(List<Path> paths) {
+		this.paths = paths;
+	}
+
+}
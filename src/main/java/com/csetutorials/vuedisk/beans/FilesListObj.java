@@ -30,6 +30,15 @@ public class FilesListObj {
 	@JsonProperty("isVideo")
 	private boolean isVideo;
 
+	/**
+	 * Detected from the file's content and name, {@code null} for directories.
+	 */
+	private String mimeType;
+
 	private long sizeInBytes;
 
+	private long lastModified;
+
+	private long created;
+
 }
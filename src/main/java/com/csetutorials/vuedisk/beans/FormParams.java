@@ -25,4 +25,10 @@ public class FormParams {
 
 	private String content;
 
+	private String fileUniqueId;
+
+	private Long totalSize;
+
+	private Long chunkSize;
+
 }
@@ -0,0 +1,87 @@
+package com.csetutorials.vuedisk.beans;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.nio.file.Path;
+import java.util.concurrent.Future;
+
+@Getter
+@Setter
+public class Job {
+
+	private final String id;
+
+	private final String type;
+
+	private final String description;
+
+	private final long createdAt = System.currentTimeMillis();
+
+	private volatile JobState state = JobState.QUEUED;
+
+	private volatile long startedAt;
+
+	private volatile long finishedAt;
+
+	private volatile String error;
+
+	@JsonIgnore
+	private final JobProgress progress = new JobProgress();
+
+	@JsonIgnore
+	private volatile Future<?> future;
+
+	/**
+	 * File produced by the job, e.g. the archive of a download-zip job.
+	 */
+	@JsonIgnore
+	private volatile Path result;
+
+	public Job(String id, String type, String description) {
+		this.id = id;
+		this.type = type;
+		this.description = description;
+	}
+
+	public long getBytes() {
+		return progress.getBytes();
+	}
+
+	public long getItems() {
+		return progress.getItems();
+	}
+
+	public long getFailures() {
+		return progress.getFailures();
+	}
+
+	/**
+	 * Moves the job to {@code state} only if it is still in {@code expected}, so that a job cancelled while
+	 * queued and the worker picking it up can't both finish it.
+	 */
+	public synchronized boolean compareAndSetState(JobState expected, JobState state) {
+		if (this.state != expected) {
+			return false;
+		}
+		this.state = state;
+		return true;
+	}
+
+	public boolean isHasResult() {
+		return result != null;
+	}
+
+	/**
+	 * Bytes per second since the job started.
+	 */
+	public long getThroughput() {
+		if (startedAt == 0) {
+			return 0;
+		}
+		long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+		return getBytes() * 1000 / Math.max(1, end - startedAt);
+	}
+
+}
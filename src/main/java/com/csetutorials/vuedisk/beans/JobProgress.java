@@ -0,0 +1,55 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters shared between a running file operation and whoever is watching it. Workers only ever add to them and
+ * check {@link #isStopped()} between units of work.
+ */
+@Getter
+@Setter
+public class JobProgress {
+
+	private final LongAdder bytes = new LongAdder();
+
+	private final LongAdder items = new LongAdder();
+
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Total bytes the operation will process when it is known up front, 0 otherwise.
+	 */
+	private volatile long totalBytes;
+
+	private volatile boolean stopped;
+
+	private volatile boolean finished;
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public long getItems() {
+		return items.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	public void addBytes(long count) {
+		bytes.add(count);
+	}
+
+	public void addItems(long count) {
+		items.add(count);
+	}
+
+	public void addFailure() {
+		failures.increment();
+	}
+
+}
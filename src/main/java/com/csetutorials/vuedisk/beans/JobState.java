@@ -0,0 +1,7 @@
+package com.csetutorials.vuedisk.beans;
+
+public enum JobState {
+
+	QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+
+}
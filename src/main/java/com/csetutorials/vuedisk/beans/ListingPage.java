@@ -0,0 +1,16 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class ListingPage {
+
+	private List<FilesListObj> entries;
+
+	private String nextCursor;
+
+}
@@ -0,0 +1,37 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class ProgressEvent {
+
+	private long bytes;
+
+	private long items;
+
+	private long failures;
+
+	/**
+	 * Total bytes the operation will process, 0 when unknown.
+	 */
+	private long totalBytes;
+
+	/**
+	 * Bytes per second over the last publishing interval.
+	 */
+	private long rate;
+
+	/**
+	 * Estimated seconds left, null when the total isn't known or nothing is moving.
+	 */
+	private Long eta;
+
+	private boolean finished;
+
+	private String state;
+
+	private String message;
+
+}
@@ -0,0 +1,21 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class SearchPage {
+
+	private List<SearchResult> results;
+
+	private String nextCursor;
+
+	/**
+	 * False while the index is still being built for the first time, results may then be incomplete.
+	 */
+	private boolean complete;
+
+}
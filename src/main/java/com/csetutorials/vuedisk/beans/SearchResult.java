@@ -0,0 +1,25 @@
+package com.csetutorials.vuedisk.beans;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class SearchResult {
+
+	/**
+	 * Path relative to the base directory, starting with '/'.
+	 */
+	private String path;
+
+	private String name;
+
+	@JsonProperty("isDir")
+	private boolean isDir;
+
+	private long sizeInBytes;
+
+	private long lastModified;
+
+}
@@ -0,0 +1,19 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Replaces {@code length} bytes at {@code offset} with {@code text}.
+ */
+@Getter
+@Setter
+public class TextEdit {
+
+	private long offset;
+
+	private long length;
+
+	private String text;
+
+}
@@ -0,0 +1,25 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+@Getter
+@Setter
+public class TextPatch {
+
+	private String path;
+
+	private String charset;
+
+	/**
+	 * The size and mtime the edits were made against, when given the patch is refused if the file changed since.
+	 */
+	private Long expectedSize;
+
+	private Long expectedLastModified;
+
+	private List<TextEdit> edits;
+
+}
@@ -0,0 +1,40 @@
+package com.csetutorials.vuedisk.beans;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * A run of whole lines of a text file. {@code startOffset} and {@code endOffset} are byte positions, which is what
+ * a {@link TextEdit} of this window refers to and where a tail-follow continues from.
+ */
+@Getter
+@Setter
+public class TextWindow {
+
+	private String content;
+
+	private long startLine;
+
+	private long lineCount;
+
+	private long startOffset;
+
+	private long endOffset;
+
+	private long totalLines;
+
+	private long sizeInBytes;
+
+	private long lastModified;
+
+	/**
+	 * Some bytes weren't valid in the charset and were replaced, so saving the content back would change them.
+	 */
+	private boolean lossy;
+
+	/**
+	 * The file shrank below the offset being followed, it was truncated or rotated and is read from the start.
+	 */
+	private boolean reset;
+
+}
@@ -0,0 +1,32 @@
+package com.csetutorials.vuedisk.beans;
+
+public enum ThumbnailPriority {
+
+	/**
+	 * Wanted by someone looking at the page right now.
+	 */
+	HIGH,
+
+	/**
+	 * Asked for by a page, but scrolled out of view before it arrived.
+	 */
+	OFFSCREEN,
+
+	/**
+	 * Generated ahead of time, nobody is waiting for it.
+	 */
+	LOW;
+
+	/**
+	 * Parses the {@code priority} request parameter, anything unknown counts as {@link #HIGH}.
+	 */
+	public static ThumbnailPriority parse(String value) {
+		for (ThumbnailPriority priority : values()) {
+			if (priority.name().equalsIgnoreCase(value)) {
+				return priority;
+			}
+		}
+		return HIGH;
+	}
+
+}
@@ -0,0 +1,166 @@
+package com.csetutorials.vuedisk.beans;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Getter;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * State of one file being uploaded in chunks. Every chunk has its own slot which moves from empty to writing to
+ * received with a compare-and-set, so parallel requests for different chunks never wait on each other and a chunk
+ * sent twice is written only once.
+ */
+@Getter
+public class UploadSession {
+
+	private static final int EMPTY = 0;
+
+	private static final int WRITING = 1;
+
+	private static final int RECEIVED = 2;
+
+	private final String id;
+
+	private final String fileName;
+
+	private final long totalSize;
+
+	private final long chunkSize;
+
+	private final int totalChunks;
+
+	/**
+	 * Whether the upload completes by itself with its last chunk, or waits to be finalized.
+	 */
+	@JsonIgnore
+	private final boolean autoFinish;
+
+	private final long createdAt = System.currentTimeMillis();
+
+	private volatile long lastAccess = createdAt;
+
+	@JsonIgnore
+	private final File targetDir;
+
+	@JsonIgnore
+	private final Path partFile;
+
+	@JsonIgnore
+	private final FileChannel channel;
+
+	@JsonIgnore
+	private final AtomicIntegerArray chunks;
+
+	@JsonIgnore
+	private final AtomicInteger received = new AtomicInteger();
+
+	@JsonIgnore
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private volatile boolean finished;
+
+	/**
+	 * Why the last attempt to move the upload into place failed.
+	 */
+	private volatile String error;
+
+	public UploadSession(String id, File targetDir, String fileName, long totalSize, long chunkSize, boolean autoFinish,
+						 Path partFile, FileChannel channel) {
+		this.id = id;
+		this.autoFinish = autoFinish;
+		this.targetDir = targetDir;
+		this.fileName = fileName;
+		this.totalSize = totalSize;
+		this.chunkSize = chunkSize;
+		this.totalChunks = Math.toIntExact(chunkCount(totalSize, chunkSize));
+		this.partFile = partFile;
+		this.channel = channel;
+		this.chunks = new AtomicIntegerArray(totalChunks);
+	}
+
+	/**
+	 * Chunks needed for {@code totalSize} bytes, at least one so that empty files are uploaded too.
+	 */
+	public static long chunkCount(long totalSize, long chunkSize) {
+		return Math.max(1, totalSize / chunkSize + (totalSize % chunkSize == 0 ? 0 : 1));
+	}
+
+	/**
+	 * Byte offset of a chunk, chunks being numbered from 0.
+	 */
+	public long offset(int chunk) {
+		return chunk * chunkSize;
+	}
+
+	public long length(int chunk) {
+		return Math.min(chunkSize, totalSize - offset(chunk));
+	}
+
+	/**
+	 * Reserves the chunk for writing, false if it is already received or being written by another request.
+	 */
+	public boolean claim(int chunk) {
+		lastAccess = System.currentTimeMillis();
+		return chunks.compareAndSet(chunk, EMPTY, WRITING);
+	}
+
+	public void release(int chunk) {
+		chunks.compareAndSet(chunk, WRITING, EMPTY);
+	}
+
+	/**
+	 * Marks a claimed chunk as written and returns true for the call that completed the file.
+	 */
+	public boolean complete(int chunk) {
+		return chunks.compareAndSet(chunk, WRITING, RECEIVED) && received.incrementAndGet() == totalChunks;
+	}
+
+	public boolean isReceived(int chunk) {
+		return chunks.get(chunk) == RECEIVED;
+	}
+
+	public int getReceivedChunks() {
+		return received.get();
+	}
+
+	public boolean isComplete() {
+		return received.get() == totalChunks;
+	}
+
+	/**
+	 * One character per chunk, '1' for the chunks already received.
+	 */
+	public String getChunkMap() {
+		StringBuilder map = new StringBuilder(totalChunks);
+		for (int i = 0; i < totalChunks; i++) {
+			map.append(isReceived(i) ? '1' : '0');
+		}
+		return map.toString();
+	}
+
+	/**
+	 * Returns true for the one caller allowed to finish or cancel the upload.
+	 */
+	public boolean close() {
+		return closed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Undoes {@link #close()} after a failed finish, so that finishing can be retried.
+	 */
+	public void reopen(String error) {
+		this.error = error;
+		closed.set(false);
+	}
+
+	public void setFinished() {
+		error = null;
+		finished = true;
+	}
+
+}
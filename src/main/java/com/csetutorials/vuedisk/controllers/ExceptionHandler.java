@@ -2,16 +2,37 @@ package com.csetutorials.vuedisk.controllers;
 
 import com.csetutorials.vuedisk.beans.ErrorMessage;
 import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 
 import jakarta.servlet.http.HttpServletRequest;
 
+import java.util.concurrent.RejectedExecutionException;
+
 @RestControllerAdvice
 @Log4j2
 public class ExceptionHandler {
 
+	@Value("${vuedisk.jobs.retry-after-seconds}")
+	private int retryAfterSeconds;
+
+	/**
+	 * The job queue is full, which clears up by itself.
+	 */
+	@org.springframework.web.bind.annotation.ExceptionHandler(RejectedExecutionException.class)
+	public ResponseEntity<ErrorMessage> handleRejected(HttpServletRequest request, RejectedExecutionException e) {
+		log.warn("Rejected '{}': {}", request.getRequestURI(), e.getMessage());
+		ErrorMessage apiError = new ErrorMessage();
+		apiError.setHttpCode(HttpStatus.SERVICE_UNAVAILABLE);
+		apiError.setMessage(e.getMessage());
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+				.body(apiError);
+	}
+
 	@org.springframework.web.bind.annotation.ExceptionHandler(Exception.class)
 	public ResponseEntity<ErrorMessage> handleException(HttpServletRequest request, Exception e) {
 		log.error("Problem while fetching response of url '{}'", request.getRequestURI(), e);
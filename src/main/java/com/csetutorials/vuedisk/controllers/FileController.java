@@ -2,16 +2,33 @@ package com.csetutorials.vuedisk.controllers;
 
 import com.csetutorials.vuedisk.beans.FilesListObj;
 import com.csetutorials.vuedisk.beans.FormParams;
-import com.csetutorials.vuedisk.beans.SizeSse;
+import com.csetutorials.vuedisk.beans.Job;
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.beans.ListingPage;
+import com.csetutorials.vuedisk.beans.ProgressEvent;
+import com.csetutorials.vuedisk.beans.ThumbnailPriority;
+import com.csetutorials.vuedisk.services.ContentTypeService;
 import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.JobService;
+import com.csetutorials.vuedisk.services.MediaStreamService;
+import com.csetutorials.vuedisk.services.ListingCacheService;
+import com.csetutorials.vuedisk.services.PagedListingService;
+import com.csetutorials.vuedisk.services.ProgressPublisher;
+import com.csetutorials.vuedisk.services.ThumbnailCacheService;
+import com.csetutorials.vuedisk.services.ThumbnailMemoryCacheService;
+import com.csetutorials.vuedisk.services.ThumbnailPregenerationService;
 import com.csetutorials.vuedisk.services.ThumbnailService;
+import com.csetutorials.vuedisk.services.TransferService;
 import com.csetutorials.vuedisk.services.UploadService;
+import com.csetutorials.vuedisk.services.VideoStreamService;
+import com.csetutorials.vuedisk.services.ZipService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
@@ -19,17 +36,21 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.MalformedURLException;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipOutputStream;
+import java.util.UUID;
+import java.util.function.Consumer;
 
 @RestController
 @RequestMapping("apis")
@@ -46,23 +67,143 @@ public class FileController {
 	UploadService uploadService;
 
 	@Autowired
-	AsyncMethods asyncMethods;
+	ListingCacheService listingCacheService;
+
+	@Autowired
+	PagedListingService pagedListingService;
+
+	@Autowired
+	TransferService transferService;
+
+	@Autowired
+	JobService jobService;
+
+	@Autowired
+	ObjectMapper objectMapper;
+
+	@Autowired
+	ProgressPublisher progressPublisher;
+
+	@Autowired
+	ZipService zipService;
+
+	@Autowired
+	MediaStreamService mediaStreamService;
+
+	@Autowired
+	VideoStreamService videoStreamService;
+
+	@Autowired
+	ThumbnailPregenerationService thumbnailPregenerationService;
+
+	@Autowired
+	ThumbnailCacheService thumbnailCacheService;
+
+	@Autowired
+	ThumbnailMemoryCacheService thumbnailMemoryCacheService;
+
+	@Autowired
+	ContentTypeService contentTypeService;
+
+	@Value("${vuedisk.thumbnails.batch.max-files}")
+	int maxThumbnailBatch;
 
 	@GetMapping("list")
 	public List<FilesListObj> list(@RequestParam("path") String dirPath) {
-		return fileService.list(fileService.parsePath(dirPath));
+		File dir = fileService.parsePath(dirPath);
+		List<FilesListObj> list = fileService.list(dir);
+		thumbnailPregenerationService.onListed(dir);
+		return list;
+	}
+
+	@GetMapping(value = "list", params = "limit")
+	public ResponseEntity<StreamingResponseBody> listPage(@RequestParam("path") String dirPath,
+														  @RequestParam("limit") int limit,
+														  @RequestParam(value = "cursor", required = false) String cursor,
+														  @RequestParam(value = "sort", defaultValue = "name") String sort,
+														  @RequestParam(value = "order", defaultValue = "asc") String order) throws IOException {
+		ListingPage page;
+		try {
+			page = pagedListingService.list(fileService.parsePath(dirPath), limit, cursor, sort, order);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		}
+		thumbnailPregenerationService.onListed(fileService.parsePath(dirPath));
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_NDJSON);
+		if (page.getNextCursor() != null) {
+			headers.set("X-Next-Cursor", page.getNextCursor());
+		}
+		StreamingResponseBody body = outputStream -> {
+			for (FilesListObj obj : page.getEntries()) {
+				outputStream.write(objectMapper.writeValueAsBytes(obj));
+				outputStream.write('\n');
+			}
+		};
+		return ResponseEntity.ok().headers(headers).body(body);
+	}
+
+	@GetMapping("list-cache-stats")
+	public Map<String, Object> listCacheStats() {
+		return listingCacheService.getStats();
 	}
 
 	@PostMapping("copy")
-	public void copy(@RequestBody FormParams params) {
-		fileService.copy(fileService.parsePath(params.getSourceDir()),
+	public void copy(@RequestBody FormParams params) throws IOException {
+		JobProgress progress = new JobProgress();
+		transferService.copy(progress, fileService.parsePath(params.getSourceDir()),
 				fileService.parsePath(params.getDestinationDir()), params.getFiles());
+		checkFailures(progress);
 	}
 
 	@PostMapping("cut")
-	public void cut(@RequestBody FormParams params) {
-		fileService.cut(fileService.parsePath(params.getSourceDir()),
+	public void cut(@RequestBody FormParams params) throws IOException {
+		JobProgress progress = new JobProgress();
+		transferService.move(progress, fileService.parsePath(params.getSourceDir()),
+				fileService.parsePath(params.getDestinationDir()), params.getFiles());
+		checkFailures(progress);
+	}
+
+	@PostMapping("copy-sse")
+	public SseEmitter copySse(@RequestBody FormParams params) {
+		Job job = jobService.submitCopy(fileService.parsePath(params.getSourceDir()),
 				fileService.parsePath(params.getDestinationDir()), params.getFiles());
+		return jobEmitter(job, this::describeTransfer);
+	}
+
+	@PostMapping("cut-sse")
+	public SseEmitter cutSse(@RequestBody FormParams params) {
+		Job job = jobService.submitMove(fileService.parsePath(params.getSourceDir()),
+				fileService.parsePath(params.getDestinationDir()), params.getFiles());
+		return jobEmitter(job, this::describeTransfer);
+	}
+
+	/**
+	 * Emitter streaming the job's progress, the job is cancelled when the client disconnects.
+	 */
+	private SseEmitter jobEmitter(Job job, Consumer<ProgressEvent> message) {
+		SseEmitter emitter = new SseEmitter(0L);
+		progressPublisher.subscribe(emitter, job.getProgress(), event -> {
+			event.setState(job.getState().name());
+			message.accept(event);
+		}, () -> jobService.cancel(job.getId()));
+		return emitter;
+	}
+
+	private void describeTransfer(ProgressEvent event) {
+		String message = "Transferred : " + fileService.getSizeInString(event.getBytes())
+				+ ", Items : " + event.getItems();
+		event.setMessage(event.getFailures() > 0 ? message + ", Failed : " + event.getFailures() : message);
+	}
+
+	private void describeSize(ProgressEvent event) {
+		event.setMessage("Size : " + fileService.getSizeInString(event.getBytes()) + ", Items : " + event.getItems());
+	}
+
+	private void checkFailures(JobProgress progress) throws IOException {
+		if (progress.getFailures() > 0) {
+			throw new IOException(progress.getFailures() + " item(s) couldn't be transferred");
+		}
 	}
 
 	@PostMapping("delete")
@@ -91,65 +232,150 @@ public class FileController {
 	}
 
 	@GetMapping("download")
-	public ResponseEntity<Resource> download(@RequestParam("path") String path) throws MalformedURLException {
-		File file = fileService.parsePath(path);
-		if (!file.exists()) {
-			return ResponseEntity.notFound().build();
-		}
-		Resource resource = new UrlResource(file.toPath().toUri());
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-		headers.setContentDispositionFormData("attachment", file.getName());
-		headers.setContentLength(file.length());
-		return ResponseEntity.ok().headers(headers).body(resource);
+	public void download(@RequestParam("path") String path, HttpServletRequest request,
+						 HttpServletResponse response) throws IOException {
+		mediaStreamService.serve(fileService.parsePath(path), false, request, response);
 	}
 
 	@GetMapping("music")
-	public ResponseEntity<Resource> music(@RequestParam("path") String path) throws MalformedURLException {
-		File file = fileService.parsePath(path);
-		if (!file.exists()) {
+	public void music(@RequestParam("path") String path, HttpServletRequest request,
+					  HttpServletResponse response) throws IOException {
+		mediaStreamService.serve(fileService.parsePath(path), true, request, response);
+	}
+
+	@GetMapping("video")
+	public void video(@RequestParam("path") String path, HttpServletRequest request,
+					  HttpServletResponse response) throws IOException {
+		videoStreamService.serve(fileService.parsePath(path), request, response);
+	}
+
+	@GetMapping("video-cache-stats")
+	public Map<String, Object> videoCacheStats() {
+		return videoStreamService.getStats();
+	}
+
+	@GetMapping("thumbnail-stats")
+	public Map<String, Object> thumbnailStats() {
+		Map<String, Object> stats = thumbnailService.getStats();
+		stats.put("cache", thumbnailCacheService.getStats());
+		stats.put("memoryCache", thumbnailMemoryCacheService.getStats());
+		stats.put("pregeneration", thumbnailPregenerationService.getStats());
+		return stats;
+	}
+
+	/**
+	 * Thumbnails of all images in a directory, or of the named ones, as a single multipart/mixed response. Parts
+	 * are written as their thumbnails become ready, each named by the file it belongs to.
+	 */
+	@GetMapping("thumbnails")
+	public ResponseEntity<StreamingResponseBody> thumbnails(@RequestParam("parent") String sourceDirPath,
+															@RequestParam("type") String thumbnailSize,
+															@RequestParam(value = "name", required = false) List<String> names) {
+		File dir = fileService.parsePath(sourceDirPath);
+		if (!dir.isDirectory()) {
 			return ResponseEntity.notFound().build();
 		}
-		Resource resource = new UrlResource(file.toPath().toUri());
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.parseMediaType("audio/wav"));
-		headers.setContentDispositionFormData("attachment", file.getName());
-		headers.setContentLength(file.length());
-		return ResponseEntity.ok().headers(headers).body(resource);
+		List<File> files = (names != null ? fileService.parsePaths(dir, names).stream().filter(File::isFile)
+				: fileService.list(dir).stream().filter(obj -> !obj.isDir() && obj.isImage())
+				.map(obj -> new File(dir, obj.getName())))
+				.limit(maxThumbnailBatch)
+				.toList();
+		String boundary = UUID.randomUUID().toString();
+		StreamingResponseBody body = outputStream -> {
+			thumbnailService.getThumbnails(files, thumbnailSize, ThumbnailPriority.HIGH, (file, thumbnail) -> {
+				ContentDisposition.Builder disposition = ContentDisposition.inline();
+				if (StandardCharsets.US_ASCII.newEncoder().canEncode(file.getName())) {
+					disposition.filename(file.getName());
+				} else {
+					disposition.filename(file.getName(), StandardCharsets.UTF_8);
+				}
+				String contentType = Files.isSymbolicLink(thumbnail.toPath())
+						? mediaStreamService.contentType(file.getName()) : MediaType.IMAGE_JPEG_VALUE;
+				outputStream.write(("--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Disposition: "
+						+ disposition.build() + "\r\nContent-Length: " + thumbnail.length() + "\r\n\r\n")
+						.getBytes(StandardCharsets.UTF_8));
+				Files.copy(thumbnail.toPath(), outputStream);
+				outputStream.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+				outputStream.flush();
+			});
+			outputStream.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		};
+		return ResponseEntity.ok()
+				.contentType(MediaType.parseMediaType("multipart/mixed; boundary=" + boundary))
+				.body(body);
 	}
 
 	@GetMapping("thumbnail")
-	public ResponseEntity<Resource> thumbnail(@RequestParam("parent") String sourceDirPath,
-											  @RequestParam("type") String thumbnailSize,
-											  @RequestParam("name") String fileName) throws IOException {
+	public void thumbnail(@RequestParam("parent") String sourceDirPath,
+						  @RequestParam("type") String thumbnailSize,
+						  @RequestParam("name") String fileName,
+						  @RequestParam(value = "priority", defaultValue = "high") String priority,
+						  HttpServletRequest request, HttpServletResponse response) throws IOException {
 		File file = fileService.parsePath(sourceDirPath, fileName);
-		if (!file.exists()) {
-			return ResponseEntity.notFound().build();
+		if (!file.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!thumbnailCacheService.isThumbnail(file.toPath())) {
+			ThumbnailMemoryCacheService.Thumbnail hot = thumbnailMemoryCacheService.get(
+					thumbnailService.getThumbnailPath(file, thumbnailSize));
+			if (hot != null) {
+				thumbnailMemoryCacheService.serve(hot, file.getName(), request, response);
+				return;
+			}
+		}
+		File thumbnail = thumbnailService.getThumbnail(file, thumbnailSize, ThumbnailPriority.parse(priority));
+		ThumbnailMemoryCacheService.Thumbnail loaded = thumbnailMemoryCacheService.load(thumbnail.toPath());
+		if (loaded != null) {
+			thumbnailMemoryCacheService.serve(loaded, file.getName(), request, response);
+		} else {
+			mediaStreamService.serve(thumbnail, true, request, response);
 		}
-		file = thumbnailService.getThumbnail(file, thumbnailSize);
-		Resource resource = new FileSystemResource(file);
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.parseMediaType("image/jpeg"));
-		headers.setContentDispositionFormData("attachment", file.getName());
-		headers.setContentLength(file.length());
-		return ResponseEntity.ok().headers(headers).body(resource);
+	}
+
+	@PostMapping("thumbnail-priority")
+	public void thumbnailPriority(@RequestBody FormParams params,
+								  @RequestParam("type") String thumbnailSize,
+								  @RequestParam("priority") String priority) throws IOException {
+		File dir = fileService.parsePath(params.getSourceDir());
+		thumbnailService.reprioritize(fileService.parsePaths(dir, params.getFiles()), thumbnailSize,
+				ThumbnailPriority.parse(priority));
 	}
 
 	@PostMapping("upload")
-	public void upload(@RequestPart("upload") MultipartFile file,
-					   @RequestParam("fileUniqueId") String fileUniqueId,
-					   @RequestParam("chunkNumber") int chunkNumber,
-					   @RequestParam("totalChunks") int totalChunks,
-					   @RequestParam("parentDir") String parentDir,
-					   @RequestParam("actualFileName") String actualFileName) throws IOException {
-		uploadService.upload(file, fileUniqueId, chunkNumber, totalChunks, parentDir, actualFileName);
+	public ResponseEntity<Void> upload(@RequestPart("upload") MultipartFile file,
+									   @RequestParam("fileUniqueId") String fileUniqueId,
+									   @RequestParam("chunkNumber") int chunkNumber,
+									   @RequestParam("totalChunks") int totalChunks,
+									   @RequestParam("chunkSize") long chunkSize,
+									   @RequestParam("totalSize") long totalSize,
+									   @RequestParam("parentDir") String parentDir,
+									   @RequestParam("actualFileName") String actualFileName) throws IOException {
+		try {
+			uploadService.upload(file, fileUniqueId, chunkNumber, totalChunks, chunkSize, totalSize, parentDir,
+					actualFileName);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		return ResponseEntity.ok().build();
+	}
+
+	@PostMapping("cancel-upload")
+	public void cancelUpload(@RequestBody FormParams params) {
+		uploadService.cancel(params.getFileUniqueId());
 	}
 
 	@PostMapping("read-text-file")
-	public Map<String, Object> readTextFile(@RequestBody FormParams params) {
+	public Map<String, Object> readTextFile(@RequestBody FormParams params,
+											@RequestParam(value = "charset", required = false) String charset) {
 		Map<String, Object> map = new HashMap<>();
 		try {
-			map.put("content", fileService.readTextFile(fileService.parsePath(params.getSourceDir(), params.getName())));
+			FileService.TextContent text = fileService.readTextFile(
+					fileService.parsePath(params.getSourceDir(), params.getName()), charset(charset));
+			map.put("content", text.content());
+			map.put("lossy", text.lossy());
 			map.put("fetched", true);
 		} catch (Exception e) {
 			map.put("fetched", false);
@@ -158,23 +384,29 @@ public class FileController {
 	}
 
 	@PostMapping("save-text-file")
-	public String saveTextFile(@RequestBody FormParams params) throws FileNotFoundException {
+	public String saveTextFile(@RequestBody FormParams params,
+							   @RequestParam(value = "charset", required = false) String charset) throws IOException {
 		File file = fileService.parsePath(params.getSourceDir(), params.getName());
 		String content = params.getContent();
-		fileService.saveTextFile(file, content);
-		return fileService.getSizeInString(content.getBytes().length);
+		Charset encoding = charset(charset);
+		fileService.saveTextFile(file, content, encoding);
+		return fileService.getSizeInString(content.getBytes(encoding).length);
+	}
+
+	private Charset charset(String name) {
+		return name == null || name.isBlank() ? StandardCharsets.UTF_8 : Charset.forName(name);
 	}
 
 	@PostMapping("download-zip")
-	public void createAndDownloadZip(@RequestBody FormParams params, HttpServletResponse response) throws IOException {
-		String parentDir = fileService.parsePath(params.getSourceDir()).getAbsolutePath();
+	public void createAndDownloadZip(@RequestBody FormParams params,
+									 @RequestParam(value = "mode", defaultValue = "deflate") String mode,
+									 HttpServletResponse response) throws IOException {
 		response.setContentType("application/zip");
 		response.setHeader("Content-Disposition", "attachment; filename=\"output.zip\"");
-		OutputStream outputStream = response.getOutputStream();
-		ZipOutputStream zos = new ZipOutputStream(outputStream);
-		fileService.createZip(parentDir, params.getFiles(), zos);
-		zos.close();
-		outputStream.flush();
+		try (OutputStream outputStream = new BufferedOutputStream(response.getOutputStream(), 64 * 1024)) {
+			zipService.write(fileService.parsePath(params.getSourceDir()), params.getFiles(), outputStream,
+					"store".equals(mode));
+		}
 	}
 
 	@PostMapping("is-text-file")
@@ -182,16 +414,20 @@ public class FileController {
 		return fileService.isTextFile(fileService.parsePath(params.getSourceDir(), params.getName()));
 	}
 
+	@GetMapping("content-types")
+	public Map<String, String> contentTypes(@RequestParam("path") String dirPath) throws IOException {
+		return contentTypeService.classify(fileService.parsePath(dirPath));
+	}
+
+	@GetMapping("content-type-stats")
+	public Map<String, Object> contentTypeStats() {
+		return contentTypeService.getStats();
+	}
+
 	@PostMapping("size-sse")
 	public SseEmitter size(@RequestBody FormParams params) {
-		SseEmitter emitter = new SseEmitter();
-		SizeSse sizeSse = new SizeSse();
-		fileService.size(sizeSse, fileService.parsePath(params.getSourceDir()), params.getFiles());
-		emitter.onCompletion(() -> sizeSse.setStopped(true));
-		emitter.onError(obj -> sizeSse.setStopped(true));
-		emitter.onTimeout(() -> sizeSse.setStopped(true));
-		asyncMethods.monitorDirSizeCalculator(emitter, sizeSse);
-		return emitter;
+		Job job = jobService.submitSize(fileService.parsePath(params.getSourceDir()), params.getFiles());
+		return jobEmitter(job, this::describeSize);
 	}
 
 }
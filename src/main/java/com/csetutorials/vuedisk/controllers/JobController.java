@@ -0,0 +1,113 @@
+package com.csetutorials.vuedisk.controllers;
+
+import com.csetutorials.vuedisk.beans.FormParams;
+import com.csetutorials.vuedisk.beans.Job;
+import com.csetutorials.vuedisk.beans.JobState;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.JobService;
+import com.csetutorials.vuedisk.services.ProgressPublisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+@RestController
+@RequestMapping("apis/jobs")
+public class JobController {
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	JobService jobService;
+
+	@Autowired
+	ProgressPublisher progressPublisher;
+
+	@GetMapping
+	public List<Job> list() {
+		return jobService.list();
+	}
+
+	@GetMapping("{id}")
+	public ResponseEntity<Job> get(@PathVariable("id") String id) {
+		Job job = jobService.get(id);
+		return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+	}
+
+	@GetMapping("{id}/events")
+	public ResponseEntity<SseEmitter> events(@PathVariable("id") String id) {
+		Job job = jobService.get(id);
+		if (job == null) {
+			return ResponseEntity.notFound().build();
+		}
+		SseEmitter emitter = new SseEmitter(0L);
+		// Watching a job doesn't own it, a disconnecting client leaves it running
+		progressPublisher.subscribe(emitter, job.getProgress(), event -> {
+			event.setState(job.getState().name());
+			event.setMessage(job.getError());
+		}, () -> {
+		});
+		return ResponseEntity.ok(emitter);
+	}
+
+	@PostMapping("{id}/cancel")
+	public ResponseEntity<Job> cancel(@PathVariable("id") String id) {
+		Job job = jobService.cancel(id);
+		return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+	}
+
+	@GetMapping("{id}/download")
+	public ResponseEntity<Resource> download(@PathVariable("id") String id) {
+		Job job = jobService.get(id);
+		if (job == null || job.getState() != JobState.COMPLETED || job.getResult() == null) {
+			return ResponseEntity.notFound().build();
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.parseMediaType("application/zip"));
+		headers.setContentDispositionFormData("attachment", "output.zip");
+		return ResponseEntity.ok().headers(headers).body(new FileSystemResource(job.getResult()));
+	}
+
+	@PostMapping("copy")
+	public ResponseEntity<Job> copy(@RequestBody FormParams params) {
+		return submit(() -> jobService.submitCopy(fileService.parsePath(params.getSourceDir()),
+				fileService.parsePath(params.getDestinationDir()), params.getFiles()));
+	}
+
+	@PostMapping("cut")
+	public ResponseEntity<Job> cut(@RequestBody FormParams params) {
+		return submit(() -> jobService.submitMove(fileService.parsePath(params.getSourceDir()),
+				fileService.parsePath(params.getDestinationDir()), params.getFiles()));
+	}
+
+	@PostMapping("delete")
+	public ResponseEntity<Job> delete(@RequestBody FormParams params) {
+		return submit(() -> jobService.submitDelete(fileService.parsePath(params.getSourceDir()), params.getFiles()));
+	}
+
+	@PostMapping("size")
+	public ResponseEntity<Job> size(@RequestBody FormParams params) {
+		return submit(() -> jobService.submitSize(fileService.parsePath(params.getSourceDir()), params.getFiles()));
+	}
+
+	@PostMapping("download-zip")
+	public ResponseEntity<Job> downloadZip(@RequestBody FormParams params,
+										   @RequestParam(value = "mode", defaultValue = "deflate") String mode) {
+		return submit(() -> jobService.submitZip(fileService.parsePath(params.getSourceDir()), params.getFiles(),
+				"store".equals(mode)));
+	}
+
+	private ResponseEntity<Job> submit(Supplier<Job> submission) {
+		return ResponseEntity.status(HttpStatus.ACCEPTED).body(submission.get());
+	}
+
+}
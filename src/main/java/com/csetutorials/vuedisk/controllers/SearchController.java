@@ -0,0 +1,43 @@
+package com.csetutorials.vuedisk.controllers;
+
+import com.csetutorials.vuedisk.beans.SearchPage;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.SearchIndexService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("apis")
+public class SearchController {
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	SearchIndexService searchIndexService;
+
+	@GetMapping("search")
+	public ResponseEntity<SearchPage> search(@RequestParam("q") String query,
+											 @RequestParam(value = "path", defaultValue = "/") String path,
+											 @RequestParam(value = "limit", defaultValue = "100") int limit,
+											 @RequestParam(value = "cursor", required = false) String cursor,
+											 @RequestParam(value = "content", defaultValue = "false") boolean content) {
+		try {
+			return ResponseEntity.ok(searchIndexService.search(query, fileService.parsePath(path), content, limit, cursor));
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		}
+	}
+
+	@GetMapping("search-stats")
+	public Map<String, Object> stats() {
+		return searchIndexService.getStats();
+	}
+
+}
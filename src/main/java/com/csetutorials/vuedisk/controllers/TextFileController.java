@@ -0,0 +1,78 @@
+package com.csetutorials.vuedisk.controllers;
+
+import com.csetutorials.vuedisk.beans.ErrorMessage;
+import com.csetutorials.vuedisk.beans.TextPatch;
+import com.csetutorials.vuedisk.beans.TextWindow;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.TextFileService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+
+@RestController
+@RequestMapping("apis/text")
+public class TextFileController {
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	TextFileService textFileService;
+
+	@GetMapping("lines")
+	public TextWindow lines(@RequestParam("path") String path,
+							@RequestParam(value = "from", defaultValue = "0") long from,
+							@RequestParam(value = "count", defaultValue = "1000") int count,
+							@RequestParam(value = "charset", required = false) String charset) throws IOException {
+		return textFileService.lines(fileService.parsePath(path), from, count, charset);
+	}
+
+	@GetMapping("window")
+	public TextWindow window(@RequestParam("path") String path,
+							 @RequestParam("offset") long offset,
+							 @RequestParam(value = "length", defaultValue = "1048576") int length,
+							 @RequestParam(value = "charset", required = false) String charset) throws IOException {
+		return textFileService.window(fileService.parsePath(path), offset, length, charset);
+	}
+
+	@GetMapping("tail")
+	public TextWindow tail(@RequestParam("path") String path,
+						   @RequestParam(value = "lines", defaultValue = "100") int lines,
+						   @RequestParam(value = "since", required = false) Long since,
+						   @RequestParam(value = "charset", required = false) String charset) throws IOException {
+		return textFileService.tail(fileService.parsePath(path), lines, since, charset);
+	}
+
+	@PostMapping("patch")
+	public Map<String, Object> patch(@RequestBody TextPatch patch) throws IOException {
+		return textFileService.patch(fileService.parsePath(patch.getPath()), patch);
+	}
+
+	@org.springframework.web.bind.annotation.ExceptionHandler(IllegalArgumentException.class)
+	public ResponseEntity<ErrorMessage> badRequest(IllegalArgumentException e) {
+		return error(HttpStatus.BAD_REQUEST, e);
+	}
+
+	@org.springframework.web.bind.annotation.ExceptionHandler(IllegalStateException.class)
+	public ResponseEntity<ErrorMessage> conflict(IllegalStateException e) {
+		return error(HttpStatus.CONFLICT, e);
+	}
+
+	@org.springframework.web.bind.annotation.ExceptionHandler(NoSuchFileException.class)
+	public ResponseEntity<ErrorMessage> notFound(NoSuchFileException e) {
+		return error(HttpStatus.NOT_FOUND, e);
+	}
+
+	private ResponseEntity<ErrorMessage> error(HttpStatus status, Exception e) {
+		ErrorMessage error = new ErrorMessage();
+		error.setHttpCode(status);
+		error.setMessage(e.getMessage());
+		return ResponseEntity.status(status).body(error);
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.csetutorials.vuedisk.controllers;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.catalina.connector.ResponseFacade;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.io.IOException;
+
+/**
+ * Records how many bytes each endpoint takes in and sends out, tagged the same way as
+ * {@code http.server.requests} so the two can be read side by side. Request bodies are counted as they are read,
+ * so chunked uploads without a {@code Content-Length} are included, and responses include what Tomcat sends with
+ * sendfile after the servlet returns. Streamed responses are counted once they complete.
+ */
+@Component
+public class TrafficMetricsFilter extends OncePerRequestFilter {
+
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest httpRequest, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		CountingRequest request = new CountingRequest(httpRequest);
+		try {
+			chain.doFilter(request, response);
+		} finally {
+			if (request.isAsyncStarted()) {
+				request.getAsyncContext().addListener(new AsyncListener() {
+					@Override
+					public void onComplete(AsyncEvent event) {
+						record(request, response);
+					}
+
+					@Override
+					public void onTimeout(AsyncEvent event) {
+					}
+
+					@Override
+					public void onError(AsyncEvent event) {
+					}
+
+					@Override
+					public void onStartAsync(AsyncEvent event) {
+					}
+				});
+			} else {
+				record(request, response);
+			}
+		}
+	}
+
+	private void record(CountingRequest request, HttpServletResponse response) {
+		Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+		String uri = pattern == null ? "UNKNOWN" : pattern.toString();
+		// Multipart bodies are parsed by Tomcat without going through the wrapper, their length is declared though
+		long requestBytes = Math.max(request.getContentLengthLong(), request.bytesRead);
+		if (requestBytes > 0) {
+			summary("vuedisk.http.request.bytes", request, uri).record(requestBytes);
+		}
+		long responseBytes = contentWritten(response);
+		if (responseBytes >= 0) {
+			summary("vuedisk.http.response.bytes", request, uri).record(responseBytes + sendfileBytes(request));
+		}
+	}
+
+	/**
+	 * Bytes Tomcat sends from a file itself once the servlet returns, bypassing the response's output buffer.
+	 */
+	private static long sendfileBytes(HttpServletRequest request) {
+		if (request.getAttribute(SENDFILE_FILENAME) != null
+				&& request.getAttribute(SENDFILE_START) instanceof Long start
+				&& request.getAttribute(SENDFILE_END) instanceof Long end) {
+			return end - start;
+		}
+		return 0;
+	}
+
+	private DistributionSummary summary(String name, HttpServletRequest request, String uri) {
+		return DistributionSummary.builder(name).baseUnit("bytes")
+				.tag("method", request.getMethod())
+				.tag("uri", uri)
+				.register(meterRegistry);
+	}
+
+	/**
+	 * Bytes of body actually written, which unlike {@code Content-Length} is known for chunked and ranged
+	 * responses too. {@code -1} when not running on Tomcat.
+	 */
+	private static long contentWritten(ServletResponse response) {
+		while (response instanceof ServletResponseWrapper wrapper) {
+			response = wrapper.getResponse();
+		}
+		return response instanceof ResponseFacade facade ? facade.getContentWritten() : -1;
+	}
+
+	/**
+	 * Counts the bytes of the body as the application reads them.
+	 */
+	private static final class CountingRequest extends HttpServletRequestWrapper {
+
+		private volatile long bytesRead;
+
+		private ServletInputStream counting;
+
+		CountingRequest(HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (counting == null) {
+				ServletInputStream in = super.getInputStream();
+				counting = new ServletInputStream() {
+					@Override
+					public int read() throws IOException {
+						int b = in.read();
+						if (b >= 0) {
+							bytesRead++;
+						}
+						return b;
+					}
+
+					@Override
+					public int read(byte[] buffer, int offset, int length) throws IOException {
+						int read = in.read(buffer, offset, length);
+						if (read > 0) {
+							bytesRead += read;
+						}
+						return read;
+					}
+
+					@Override
+					public int available() throws IOException {
+						return in.available();
+					}
+
+					@Override
+					public void close() throws IOException {
+						in.close();
+					}
+
+					@Override
+					public boolean isFinished() {
+						return in.isFinished();
+					}
+
+					@Override
+					public boolean isReady() {
+						return in.isReady();
+					}
+
+					@Override
+					public void setReadListener(ReadListener listener) {
+						in.setReadListener(listener);
+					}
+				};
+			}
+			return counting;
+		}
+
+	}
+
+}
@@ -0,0 +1,108 @@
+package com.csetutorials.vuedisk.controllers;
+
+import com.csetutorials.vuedisk.beans.FormParams;
+import com.csetutorials.vuedisk.beans.UploadSession;
+import com.csetutorials.vuedisk.services.FileService;
+import com.csetutorials.vuedisk.services.UploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resumable uploads: create a session, send its chunks (numbered from 0) in any order and in parallel, check which
+ * ones arrived with a GET, then finalize. A session whose chunk size is its total size takes the whole file in one
+ * request.
+ */
+@RestController
+@RequestMapping("apis/uploads")
+public class UploadController {
+
+	@Autowired
+	FileService fileService;
+
+	@Autowired
+	UploadService uploadService;
+
+	@PostMapping
+	public ResponseEntity<UploadSession> create(@RequestBody FormParams params) throws IOException {
+		if (params.getName() == null || params.getTotalSize() == null || params.getChunkSize() == null) {
+			return ResponseEntity.badRequest().build();
+		}
+		try {
+			UploadSession session = uploadService.create(fileService.parsePath(params.getSourceDir()),
+					params.getName(), params.getTotalSize(), params.getChunkSize());
+			return ResponseEntity.status(HttpStatus.CREATED).body(session);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		}
+	}
+
+	@GetMapping("{id}")
+	public ResponseEntity<UploadSession> get(@PathVariable("id") String id) {
+		UploadSession session = uploadService.get(id);
+		return session == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(session);
+	}
+
+	@PostMapping("{id}/chunks/{chunk}")
+	public ResponseEntity<Void> chunk(@PathVariable("id") String id, @PathVariable("chunk") int chunk,
+									  @RequestPart("upload") MultipartFile file) throws IOException {
+		UploadSession session = uploadService.get(id);
+		if (session == null) {
+			return ResponseEntity.notFound().build();
+		}
+		try (InputStream in = file.getInputStream()) {
+			uploadService.write(session, chunk, in, file.getSize());
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		return ResponseEntity.noContent().build();
+	}
+
+	/**
+	 * Same as the multipart variant but takes the chunk as the raw request body, which is streamed straight to its
+	 * offset in the part file instead of being spooled to a temp file first. Chunks sent this way aren't bound by
+	 * the multipart size limits.
+	 */
+	@PutMapping(value = "{id}/chunks/{chunk}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+	public ResponseEntity<Void> rawChunk(@PathVariable("id") String id, @PathVariable("chunk") int chunk,
+										 HttpServletRequest request) throws IOException {
+		UploadSession session = uploadService.get(id);
+		if (session == null) {
+			return ResponseEntity.notFound().build();
+		}
+		long length = request.getContentLengthLong();
+		try (InputStream in = request.getInputStream()) {
+			uploadService.write(session, chunk, in, length < 0 ? session.length(chunk) : length);
+		} catch (IllegalArgumentException e) {
+			return ResponseEntity.badRequest().build();
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).build();
+		}
+		return ResponseEntity.noContent().build();
+	}
+
+	@PostMapping("{id}/finalize")
+	public ResponseEntity<UploadSession> finish(@PathVariable("id") String id) throws IOException {
+		try {
+			UploadSession session = uploadService.finish(id);
+			return session == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(session);
+		} catch (IllegalStateException e) {
+			return ResponseEntity.status(HttpStatus.CONFLICT).body(uploadService.get(id));
+		}
+	}
+
+	@DeleteMapping("{id}")
+	public ResponseEntity<Void> cancel(@PathVariable("id") String id) {
+		return uploadService.cancel(id) ? ResponseEntity.noContent().build() : ResponseEntity.notFound().build();
+	}
+
+}
@@ -0,0 +1,194 @@
+package com.csetutorials.vuedisk.services;
+
+import lombok.extern.log4j.Log4j2;
+import org.apache.tika.Tika;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects MIME types from the first {@code vuedisk.content-type.header-bytes} of a file together with its name,
+ * using one shared detector. Results are cached by path and are valid as long as the file's size and mtime are
+ * unchanged, so asking again costs no reads. Listings only use {@link #detectByName(String)}, which reads nothing.
+ */
+@Service
+@Log4j2
+public class ContentTypeService {
+
+	private static final String DEFAULT_TYPE = "application/octet-stream";
+
+	@Value("${vuedisk.content-type.header-bytes}")
+	private int headerBytes;
+
+	@Value("${vuedisk.content-type.cache-size}")
+	private int cacheSize;
+
+	@Value("${vuedisk.content-type.batch-parallelism}")
+	private int batchParallelism;
+
+	private final Tika tika = new Tika();
+
+	private final MediaTypeRegistry registry = MediaTypeRegistry.getDefaultRegistry();
+
+	private final Map<String, Boolean> textTypes = new ConcurrentHashMap<>();
+
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+			return size() > cacheSize;
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	private record Entry(long size, long lastModified, String type) {
+	}
+
+	/**
+	 * The MIME type suggested by a file name alone.
+	 */
+	public String detectByName(String name) {
+		return tika.detect(name);
+	}
+
+	public String detect(File file) throws IOException {
+		Path path = file.toPath();
+		return detect(path, Files.readAttributes(path, BasicFileAttributes.class));
+	}
+
+	/**
+	 * The MIME type of a regular file, {@code null} for anything else.
+	 */
+	public String detect(Path path, BasicFileAttributes attributes) {
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		synchronized (entries) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.size() == attributes.size() && entry.lastModified() == lastModified) {
+				hits.increment();
+				return entry.type();
+			}
+		}
+		misses.increment();
+		String type = sniff(path, attributes.size());
+		synchronized (entries) {
+			entries.put(path, new Entry(attributes.size(), lastModified, type));
+		}
+		return type;
+	}
+
+	/**
+	 * MIME types of all regular files in a directory by name, the uncached ones read a few at a time.
+	 */
+	public Map<String, String> classify(File dir) throws IOException {
+		List<Map.Entry<Path, BasicFileAttributes>> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+			for (Path path : stream) {
+				try {
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					if (attributes.isRegularFile()) {
+						files.add(Map.entry(path, attributes));
+					}
+				} catch (IOException e) {
+					log.debug("Skipping unreadable entry {}", path, e);
+				}
+			}
+		}
+		Map<String, String> types = new ConcurrentSkipListMap<>();
+		Semaphore permits = new Semaphore(Math.max(1, batchParallelism));
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (Map.Entry<Path, BasicFileAttributes> file : files) {
+				permits.acquireUninterruptibly();
+				executor.execute(() -> {
+					try {
+						types.put(file.getKey().getFileName().toString(), detect(file.getKey(), file.getValue()));
+					} finally {
+						permits.release();
+					}
+				});
+			}
+		}
+		return types;
+	}
+
+	public boolean isText(File file) throws IOException {
+		return file.isFile() && isText(detect(file));
+	}
+
+	/**
+	 * Whether a MIME type is text or derives from a text type, as {@code application/json} and
+	 * {@code application/xml} do.
+	 */
+	public boolean isText(String type) {
+		if (type == null) {
+			return false;
+		}
+		return textTypes.computeIfAbsent(type, key -> {
+			MediaType mediaType = MediaType.parse(key);
+			while (mediaType != null) {
+				if (mediaType.getType().equals("text")) {
+					return true;
+				}
+				for (MediaType alias : registry.getAliases(mediaType)) {
+					if (alias.getType().equals("text")) {
+						return true;
+					}
+				}
+				mediaType = registry.getSupertype(mediaType);
+			}
+			return false;
+		});
+	}
+
+	public Map<String, Object> getStats() {
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("hits", hitCount);
+		map.put("misses", missCount);
+		map.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		map.put("bytesRead", bytesRead.sum());
+		synchronized (entries) {
+			map.put("cached", entries.size());
+		}
+		map.put("maxCached", cacheSize);
+		return map;
+	}
+
+	private String sniff(Path path, long size) {
+		String name = path.getFileName().toString();
+		ByteBuffer header = ByteBuffer.allocate((int) Math.min(headerBytes, size));
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					// Truncated since its attributes were read
+					break;
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Couldn't read {}, guessing its type from the name", path, e);
+			return tika.detect(name);
+		}
+		bytesRead.add(header.position());
+		String type = tika.detect(Arrays.copyOf(header.array(), header.position()), name);
+		return type == null ? DEFAULT_TYPE : type;
+	}
+
+}
@@ -1,15 +1,30 @@
 package com.csetutorials.vuedisk.services;
 
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 
+/**
+ * Tells the kind of a file from its extension. All extensions are kept in one open addressing table, so
+ * {@link #classify} finds every kind with a single lookup, folding case as it hashes instead of lower casing a copy
+ * of the extension. More extensions can be added per kind through {@code vuedisk.extensions.*}.
+ */
 @Service
 public class ExtensionService {
 
-	private final Set<String> textFileExtensions = new HashSet<>(Arrays.asList(
+	public static final int TEXT = 1;
+
+	public static final int IMAGE = 1 << 1;
+
+	public static final int AUDIO = 1 << 2;
+
+	public static final int VIDEO = 1 << 3;
+
+	private static final List<String> TEXT_EXTENSIONS = Arrays.asList(
 			"gnumakefile", "makefile", "ada", "adb", "ads", "ahk", "alg", "as", "ascx", "ashx", "asp", "aspx", "awk",
 			"bash", "bat", "c", "cbl", "cc", "cfg", "cfm", "cfml", "clj", "cmf", "cob", "coffee", "config", "cpp",
 			"cpy", "cs", "css", "csv", "cxx", "d", "dart", "e", "erl", "ex", "exs", "f", "f90", "f95", "fsx", "go",
@@ -18,9 +33,9 @@ public class ExtensionService {
 			"pas", "php", "pl", "pp", "prg", "pro", "properties", "ps1", "psm1", "pwn", "py", "r", "rb", "rkt", "rs",
 			"rss", "sas", "sass", "scala", "scm", "scss", "sh", "sql", "st", "swift", "tcl", "text", "toml", "ts", "v",
 			"vb", "vh", "vhd", "vhdl", "vm", "vue", "xml", "xsl", "xstl", "yaml", "zsh"
-	));
+	);
 
-	private final Set<String> imageExtentions = new HashSet<>(Arrays.asList(
+	private static final List<String> IMAGE_EXTENSIONS = Arrays.asList(
 			"3dv", "ai", "amf", "art", "ase", "awg", "blp", "bmp", "bw", "cd5", "cdr", "cgm", "cit", "cmx", "cpt",
 			"cr2", "cur", "cut", "dds", "dib", "djvu", "dxf", "e2d", "ecw", "egt", "emf", "eps", "exif", "gbr",
 			"gif", "gpl", "grf", "hdp", "icns", "ico", "iff", "int", "inta", "jfif", "jng", "jp2", "jpeg", "jpg", "jps",
@@ -28,12 +43,58 @@ public class ExtensionService {
 			"pc3", "pcf", "pct", "pcx", "pdd", "pdn", "pgf", "pgm", "pi1", "pi2", "pi3", "pict", "png", "pnm", "pns",
 			"ppm", "psb", "psp", "px", "pxm", "pxr", "qfx", "ras", "raw", "rgb", "rgba", "rle", "sct", "sgi",
 			"sid", "stl", "sun", "svg", "sxd", "tga", "tif", "tiff", "v2d", "vnd", "vrml", "vtf", "wdp", "webp", "wmf",
-			"x3d", "xar", "xbm", "xcf", "xpm"));
+			"x3d", "xar", "xbm", "xcf", "xpm");
+
+	private static final List<String> AUDIO_EXTENSIONS = Arrays.asList("aac", "mp3", "wav");
+
+	private static final List<String> VIDEO_EXTENSIONS = Arrays.asList(
+			"avi", "mp4", "mpeg", "mpg", "ogg", "webm");
+
+	@Value("${vuedisk.extensions.text}")
+	private List<String> extraText;
+
+	@Value("${vuedisk.extensions.image}")
+	private List<String> extraImage;
+
+	@Value("${vuedisk.extensions.audio}")
+	private List<String> extraAudio;
 
-	private final Set<String> audioExtensions = new HashSet<>(Arrays.asList("aac", "mp3", "wav"));
+	@Value("${vuedisk.extensions.video}")
+	private List<String> extraVideo;
 
-	private final Set<String> videoExtensions = new HashSet<>(Arrays.asList(
-			"avi", "mp4", "mpeg", "mpg", "ogg", "webm"));
+	private char[][] keys;
+
+	private int[] kinds;
+
+	private int mask;
+
+	private int maxLength;
+
+	@PostConstruct
+	public void init() {
+		List<String> extensions = new ArrayList<>();
+		List<Integer> extensionKinds = new ArrayList<>();
+		collect(extensions, extensionKinds, TEXT_EXTENSIONS, extraText, TEXT);
+		collect(extensions, extensionKinds, IMAGE_EXTENSIONS, extraImage, IMAGE);
+		collect(extensions, extensionKinds, AUDIO_EXTENSIONS, extraAudio, AUDIO);
+		collect(extensions, extensionKinds, VIDEO_EXTENSIONS, extraVideo, VIDEO);
+		// At most a quarter full, so that a lookup rarely probes more than one slot
+		int capacity = Integer.highestOneBit(Math.max(16, extensions.size() * 4) - 1) << 1;
+		keys = new char[capacity][];
+		kinds = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < extensions.size(); i++) {
+			char[] key = extensions.get(i).toLowerCase().toCharArray();
+			maxLength = Math.max(maxLength, key.length);
+			int slot = slot(key, 0, key.length);
+			while (keys[slot] != null && !Arrays.equals(keys[slot], key)) {
+				slot = (slot + 1) & mask;
+			}
+			// An extension listed under several kinds is all of them
+			keys[slot] = key;
+			kinds[slot] |= extensionKinds.get(i);
+		}
+	}
 
 	public String getExtension(String fileName) {
 		int dotIndex = fileName.lastIndexOf('.');
@@ -43,20 +104,87 @@ public class ExtensionService {
 		return fileName.substring(dotIndex + 1).toLowerCase();
 	}
 
+	/**
+	 * The kinds of a file by its extension, as a combination of {@link #TEXT}, {@link #IMAGE}, {@link #AUDIO} and
+	 * {@link #VIDEO}, or 0 for none of them. Doesn't allocate.
+	 */
+	public int classify(CharSequence fileName) {
+		int length = fileName.length();
+		int dot = length - 1;
+		while (dot >= 0 && fileName.charAt(dot) != '.') {
+			dot--;
+		}
+		int start = dot + 1;
+		if (dot < 0 || start == length || length - start > maxLength) {
+			return 0;
+		}
+		for (int slot = slot(fileName, start, length); keys[slot] != null; slot = (slot + 1) & mask) {
+			if (matches(keys[slot], fileName, start, length)) {
+				return kinds[slot];
+			}
+		}
+		return 0;
+	}
+
 	public boolean isText(String fileName) {
-		return textFileExtensions.contains(getExtension(fileName));
+		return (classify(fileName) & TEXT) != 0;
 	}
 
 	public boolean isImage(String fileName) {
-		return imageExtentions.contains(getExtension(fileName));
+		return (classify(fileName) & IMAGE) != 0;
 	}
 
 	public boolean isAudio(String fileName) {
-		return audioExtensions.contains(getExtension(fileName));
+		return (classify(fileName) & AUDIO) != 0;
 	}
 
 	public boolean isVideo(String fileName) {
-		return videoExtensions.contains(getExtension(fileName));
+		return (classify(fileName) & VIDEO) != 0;
+	}
+
+	private void collect(List<String> extensions, List<Integer> extensionKinds, List<String> builtIn,
+						 List<String> extra, int kind) {
+		for (List<String> list : List.of(builtIn, extra)) {
+			for (String extension : list) {
+				String trimmed = extension.trim();
+				if (!trimmed.isEmpty()) {
+					extensions.add(trimmed.startsWith(".") ? trimmed.substring(1) : trimmed);
+					extensionKinds.add(kind);
+				}
+			}
+		}
+	}
+
+	private int slot(char[] key, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + key[i];
+		}
+		return spread(hash);
+	}
+
+	private int slot(CharSequence name, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + Character.toLowerCase(name.charAt(i));
+		}
+		return spread(hash);
+	}
+
+	private int spread(int hash) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	private boolean matches(char[] key, CharSequence name, int start, int end) {
+		if (key.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] != Character.toLowerCase(name.charAt(start + i))) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 }
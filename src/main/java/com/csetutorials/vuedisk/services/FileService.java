@@ -1,27 +1,28 @@
 package com.csetutorials.vuedisk.services;
 
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
 import com.csetutorials.vuedisk.beans.FilesListObj;
-import com.csetutorials.vuedisk.beans.SizeSse;
+import com.csetutorials.vuedisk.beans.JobProgress;
 import lombok.extern.log4j.Log4j2;
-import org.apache.tika.Tika;
-import org.apache.tika.mime.MediaType;
-import org.apache.tika.mime.MediaTypeRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.text.DecimalFormat;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 @Service
 @Log4j2
@@ -30,9 +31,24 @@ public class FileService {
 	@Autowired
 	private ExtensionService extensionService;
 
+	@Autowired
+	private ContentTypeService contentTypeService;
+
+	@Autowired
+	private ListingCacheService listingCache;
+
+	@Autowired
+	private SizeIndexService sizeIndex;
+
+	@Autowired
+	private ApplicationEventPublisher eventPublisher;
+
 	@Value("${base.dir}")
 	private String baseDir;
 
+	@Value("${vuedisk.text.max-full-read-mb}")
+	private long maxFullReadMb;
+
 	private final DecimalFormat decimalFormat = new DecimalFormat("#.##");
 
 	public String getBaseDir() {
@@ -55,24 +71,22 @@ public class FileService {
 		if (!dir.exists()) {
 			return Collections.emptyList();
 		}
-		File[] files = dir.listFiles();
-		if (files == null || files.length == 0) {
-			return Collections.emptyList();
-		}
+		return listingCache.get(dir.toPath(), path -> readListing(path.toFile()));
+	}
+
+	private List<FilesListObj> readListing(File dir) {
 		List<FilesListObj> list = new ArrayList<>();
-		for (File file : files) {
-			FilesListObj obj = new FilesListObj();
-			obj.setName(file.getName());
-			obj.setDir(file.isDirectory());
-			obj.setSize(getSizeInString(file.length()));
-			obj.setSizeInBytes(file.length());
-			if (!file.isDirectory()) {
-				obj.setText(file.length() <= 5000000 && extensionService.isText(file.getName()));
-				obj.setImage(extensionService.isImage(file.getName()));
-				obj.setAudio(extensionService.isAudio(file.getName()));
-				obj.setVideo(extensionService.isVideo(file.getName()));
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+			for (Path path : stream) {
+				try {
+					list.add(toListObj(path, Files.readAttributes(path, BasicFileAttributes.class)));
+				} catch (IOException e) {
+					log.debug("Skipping unreadable entry {}", path, e);
+				}
 			}
-			list.add(obj);
+		} catch (IOException e) {
+			log.error("Couldn't list dir {}", dir.getAbsolutePath(), e);
+			return Collections.emptyList();
 		}
 		list.sort((obj1, obj2) -> {
 			if ((obj1.isDir() && obj2.isDir()) || (!obj1.isDir() && !obj2.isDir())) {
@@ -86,111 +100,109 @@ public class FileService {
 		return list;
 	}
 
-	public void copy(File sourceDir, File destinationDir, List<String> files) {
-		if (!destinationDir.exists() && !destinationDir.mkdirs()) {
-			log.warn("Couldn't create dir {}", destinationDir.getAbsolutePath());
-			return;
+	public FilesListObj toListObj(Path path, BasicFileAttributes attributes) {
+		String name = path.getFileName().toString();
+		FilesListObj obj = new FilesListObj();
+		obj.setName(name);
+		obj.setDir(attributes.isDirectory());
+		if (attributes.isDirectory()) {
+			// Only indexed folder sizes are meaningful, the length of a directory inode isn't
+			SizeIndexService.Entry indexed = sizeIndex.lookup(path, attributes.lastModifiedTime().toMillis());
+			obj.setSize(indexed != null ? getSizeInString(indexed.bytes()) : "-");
+			obj.setSizeInBytes(indexed != null ? indexed.bytes() : 0);
+		} else {
+			obj.setSize(getSizeInString(attributes.size()));
+			obj.setSizeInBytes(attributes.size());
 		}
-		Deque<File> stack = new LinkedList<>(parsePaths(sourceDir, files));
-		while (!stack.isEmpty()) {
-			File file = stack.pop();
-			if (!file.exists()) {
-				continue;
-			}
-			File target = new File(destinationDir.getAbsolutePath() + File.separator + file.getAbsolutePath().substring(sourceDir.getAbsolutePath().length() + 1));
-			if (file.isDirectory()) {
-				mkdirs(target);
-				File[] arr = file.listFiles();
-				if (arr != null) {
-					Collections.addAll(stack, arr);
-				}
-			} else {
-				try {
-					Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
-				} catch (IOException e) {
-					log.error("Problem while copying the file {}", file.getAbsolutePath(), e);
-				}
-			}
+		obj.setLastModified(attributes.lastModifiedTime().toMillis());
+		obj.setCreated(attributes.creationTime().toMillis());
+		if (!attributes.isDirectory()) {
+			int kind = extensionService.classify(name);
+			// By name only, a listing can't afford to open every file
+			obj.setMimeType(contentTypeService.detectByName(name));
+			obj.setText(attributes.size() <= 5000000
+					&& ((kind & ExtensionService.TEXT) != 0 || contentTypeService.isText(obj.getMimeType())));
+			obj.setImage((kind & ExtensionService.IMAGE) != 0);
+			obj.setAudio((kind & ExtensionService.AUDIO) != 0);
+			obj.setVideo((kind & ExtensionService.VIDEO) != 0);
 		}
+		return obj;
 	}
 
-	public void cut(File sourceDir, File destinationDir, List<String> files) {
-		if (!destinationDir.exists() && !destinationDir.mkdirs()) {
-			log.warn("Couldn't create dir {}", destinationDir.getAbsolutePath());
-			return;
+	public void delete(File sourceDir, List<String> children) {
+		delete(new JobProgress(), sourceDir, children);
+	}
+
+	public void delete(JobProgress progress, File sourceDir, List<String> children) {
+		List<File> files = parsePaths(sourceDir, children);
+		for (File file : files) {
+			if (progress.isStopped()) {
+				break;
+			}
+			deleteTree(file, progress);
 		}
-		Deque<File> queue = new LinkedList<>(parsePaths(sourceDir, files));
-		Deque<File> stack = new LinkedList<>();
-		while (!queue.isEmpty()) {
-			File file = queue.pop();
-			if (!file.exists()) {
-				continue;
+		notifyChanged(files.toArray(File[]::new));
+	}
+
+	public void delete(File dir) {
+		deleteTree(dir, new JobProgress());
+		notifyChanged(dir);
+	}
+
+	private void deleteTree(File dir, JobProgress progress) {
+		walk(dir.toPath(), EnumSet.noneOf(FileVisitOption.class), new TreeVisitor() {
+			@Override
+			public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+				deleteSilently(path.toFile());
+				progress.addItems(1);
+				progress.addBytes(attrs.size());
+				return progress.isStopped() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
 			}
-			File target = new File(destinationDir.getAbsolutePath() + File.separator + file.getAbsolutePath().substring(sourceDir.getAbsolutePath().length() + 1));
-			if (file.isDirectory()) {
-				mkdirs(target);
-				File[] arr = file.listFiles();
-				if (arr != null) {
-					Collections.addAll(queue, arr);
-				}
-				stack.push(file);
-			} else {
-				renameTo(file, target);
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path path, IOException e) {
+				deleteSilently(path.toFile());
+				progress.addItems(1);
+				return progress.isStopped() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
 			}
-		}
-		while (!stack.isEmpty()) {
-			deleteSilently(stack.pop());
-		}
+		});
 	}
 
-	public void delete(File sourceDir, List<String> children) {
-		parsePaths(sourceDir, children).forEach(this::delete);
+	public Path getCacheDir() {
+		return Paths.get(this.baseDir, ".cache", "vuedisk");
 	}
 
-	public void delete(File dir) {
-		if (!dir.exists()) {
+	private void walk(Path root, Set<FileVisitOption> options, TreeVisitor visitor) {
+		if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
 			return;
 		}
-		if (dir.isDirectory()) {
-			File[] list = dir.listFiles();
-			if (list != null) {
-				for (File file : list) {
-					delete(file);
-				}
-			}
+		try {
+			Files.walkFileTree(root, options, Integer.MAX_VALUE, visitor);
+		} catch (IOException e) {
+			log.error("Problem while walking {}", root, e);
 		}
-		deleteSilently(dir);
 	}
 
-	@Async
-	public void size(SizeSse sizeSse, File sourceDir, List<String> files) {
-		if (!sourceDir.exists()) {
-			sizeSse.setFinished(true);
-			return;
+	/**
+	 * Tree visitor which gets one attribute read per entry. Entries which vanish or can't be read are logged and
+	 * skipped, the same way the individual operations treat them.
+	 */
+	private abstract static class TreeVisitor extends SimpleFileVisitor<Path> {
+
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException e) {
+			log.warn("Couldn't read {}", file, e);
+			return FileVisitResult.CONTINUE;
 		}
-		Deque<File> stack = new LinkedList<>(parsePaths(sourceDir, files));
-		while (!stack.isEmpty()) {
-			if (sizeSse.isStopped()) {
-				return;
-			}
-			File file = stack.pop();
-			if (!file.exists()) {
-				continue;
-			}
-			sizeSse.setItems(sizeSse.getItems() + 1);
-			if (file.isDirectory()) {
-				for (File temp : checkNonNull(file.listFiles())) {
-					stack.push(temp);
-				}
-			} else {
-				sizeSse.setSizeInBytes(sizeSse.getSizeInBytes() + file.length());
+
+		@Override
+		public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+			if (e != null) {
+				log.warn("Couldn't list dir {}", dir, e);
 			}
+			return FileVisitResult.CONTINUE;
 		}
-		sizeSse.setFinished(true);
-	}
 
-	private File[] checkNonNull(File[] files) {
-		return files != null ? files : new File[]{};
 	}
 
 	public String getSizeInString(long size) {
@@ -207,7 +219,10 @@ public class FileService {
 	}
 
 	public void rename(File dir, String oldName, String newName) {
-		renameTo(dir.toPath().resolve(oldName).toFile(), dir.toPath().resolve(newName).toFile());
+		File src = dir.toPath().resolve(oldName).toFile();
+		File target = dir.toPath().resolve(newName).toFile();
+		renameTo(src, target);
+		notifyChanged(src, target);
 	}
 
 	public void remoteUpload(File destinationFile, String url) throws URISyntaxException {
@@ -220,100 +235,111 @@ public class FileService {
 				while ((bytesRead = in.read(dataBuffer, 0, 1024)) != -1) {
 					fileOutputStream.write(dataBuffer, 0, bytesRead);
 				}
+				notifyChanged(destinationFile);
 			} catch (Exception e) {
 				log.error("Problem while downloading the file", e);
 			}
 		})).start();
 	}
 
-	public void createZip(String parentDirPath, List<String> children, ZipOutputStream zos) throws IOException {
-		for (String child : children) {
-			Path path = Paths.get(parentDirPath, child);
-			if (!Files.exists(path)) {
-				continue;
+	public void saveTextFile(File file, String content, Charset charset) throws IOException {
+		mkdirs(file.getParentFile());
+		ByteBuffer bytes = charset.encode(content);
+		writeAtomically(file, channel -> {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
 			}
+		});
+		notifyChanged(file);
+	}
 
-			if (Files.isDirectory(path)) {
-				addDirectoryToZip(parentDirPath, path.toString(), zos);
-			} else {
-				try (FileInputStream fis = new FileInputStream(path.toFile())) {
-
-					ZipEntry zipEntry = new ZipEntry(child);
-					zos.putNextEntry(zipEntry);
+	/**
+	 * Content of a text file, {@code lossy} when some bytes weren't valid in the charset and were replaced, so that
+	 * saving it back would change them.
+	 */
+	public record TextContent(String content, boolean lossy) {
+	}
 
-					byte[] buffer = new byte[1024];
-					int length;
-					while ((length = fis.read(buffer)) > 0) {
-						zos.write(buffer, 0, length);
-					}
-				}
-				zos.closeEntry();
-			}
+	/**
+	 * Reads a whole text file, for files small enough to edit in one piece. Larger ones are read in windows through
+	 * {@link TextFileService}.
+	 */
+	public TextContent readTextFile(File file, Charset charset) throws IOException {
+		if (file.length() > maxFullReadMb * 1024 * 1024) {
+			throw new IOException(file + " is too large to be read at once");
+		}
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		try {
+			return new TextContent(charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT).decode(bytes.duplicate()).toString(), false);
+		} catch (CharacterCodingException e) {
+			return new TextContent(charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE).decode(bytes).toString(), true);
 		}
 	}
 
-	private void addDirectoryToZip(String rootDir, String currentDir, ZipOutputStream zos) throws IOException {
-		File dir = new File(currentDir);
-		File[] files = dir.listFiles();
-		if (files == null) {
-			return;
+	/**
+	 * Replaces a file with what {@code writer} writes, so that readers see either the old or the new content
+	 * and a crash leaves the old one intact. The content goes to a temporary sibling, is synced to disk and then
+	 * moved over the file, keeping its permissions and, where allowed, its owner. A symlink is followed, so the
+	 * file it points to is replaced rather than the link.
+	 */
+	public void writeAtomically(File file, ChannelWriter writer) throws IOException {
+		Path target = file.toPath();
+		boolean exists = Files.exists(target);
+		if (exists) {
+			target = target.toRealPath();
 		}
-		for (File file : files) {
-			if (file.isDirectory()) {
-				addDirectoryToZip(rootDir, file.getAbsolutePath(), zos);
-			} else {
-				try (FileInputStream fis = new FileInputStream(file)) {
-					String entryName = file.getAbsolutePath().replace(rootDir, "");
-
-					ZipEntry zipEntry = new ZipEntry(entryName);
-					zos.putNextEntry(zipEntry);
-
-					byte[] buffer = new byte[1024];
-					int length;
-					while ((length = fis.read(buffer)) > 0) {
-						zos.write(buffer, 0, length);
-					}
-				}
-				zos.closeEntry();
+		Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				writer.write(channel);
+				channel.force(true);
+			}
+			if (exists && Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class)) {
+				copyPosixAttributes(target, temp);
 			}
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
 		}
 	}
 
-	public void saveTextFile(File file, String content) throws FileNotFoundException {
-		mkdirs(file.getParentFile());
-		try (PrintWriter out = new PrintWriter(file)) {
-			out.print(content);
-			out.flush();
+	private void copyPosixAttributes(Path from, Path to) throws IOException {
+		PosixFileAttributes attributes = Files.readAttributes(from, PosixFileAttributes.class);
+		PosixFileAttributeView view = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+		try {
+			view.setGroup(attributes.group());
+			view.setOwner(attributes.owner());
+		} catch (IOException e) {
+			// Only root may give files away, everyone else leaves them owned by whoever runs VueDisk
+			log.debug("Couldn't keep the owner of {}", from, e);
 		}
+		// After the owner, as changing it clears the setuid and setgid bits
+		view.setPermissions(attributes.permissions());
 	}
 
-	public String readTextFile(File file) throws IOException {
-		try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-			StringBuilder sb = null;
-			String line;
-			while ((line = br.readLine()) != null) {
-				if (sb == null) {
-					sb = new StringBuilder();
-					sb.append(line);
-				} else {
-					sb.append('\n').append(line);
-				}
-			}
-			if (sb == null) {
-				return "";
-			} else {
-				return sb.toString();
-			}
+	public interface ChannelWriter {
+
+		void write(FileChannel channel) throws IOException;
 
-		}
 	}
 
 	public void mkdirs(File dir) {
-		if (!dir.exists() && !dir.mkdirs()) {
+		if (dir.exists()) {
+			return;
+		}
+		if (dir.mkdirs()) {
+			notifyChanged(dir);
+		} else {
 			log.error("Couldn't create dir {}", dir.getAbsolutePath());
 		}
 	}
 
+	public void notifyChanged(File... files) {
+		eventPublisher.publishEvent(new FileChangeEvent(Arrays.stream(files).map(File::toPath).toList()));
+	}
+
 	public void deleteSilently(File file) {
 		if (!file.exists()) {
 			return;
@@ -333,23 +359,6 @@ public class FileService {
 
 
 	public boolean isTextFile(File file) throws IOException {
-		if (!file.exists() || file.length() < 10000000) {
-			return false;
-		}
-		byte[] contentBytes = Files.readAllBytes(file.toPath());
-		Tika tika = new Tika();
-		try (ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(contentBytes)) {
-			Set<MediaType> mediaTypes = new HashSet<>();
-			MediaType mediaType = MediaType.parse(tika.detect(byteArrayInputStream));
-			MediaTypeRegistry mediaTypeRegistry = MediaTypeRegistry.getDefaultRegistry();
-			while (mediaType != null) {
-				mediaTypes.addAll(mediaTypeRegistry.getAliases(mediaType));
-				mediaTypes.add(mediaType);
-				mediaType = mediaTypeRegistry.getSupertype(mediaType);
-			}
-			return mediaTypes.stream().anyMatch(mt -> mt.getType().equals("text"));
-		} catch (IOException e) {
-			return false;
-		}
+		return contentTypeService.isText(file);
 	}
 }
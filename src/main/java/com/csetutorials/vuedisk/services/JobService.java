@@ -0,0 +1,273 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.Job;
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.beans.JobState;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs long file operations in the background. At most {@code vuedisk.jobs.max-concurrent} jobs run at once, the
+ * rest wait in a bounded queue. Size jobs are the exception: they mostly wait for {@link SizeService}'s own pool and
+ * are expected to answer quickly, so each gets a virtual thread of its own rather than queueing behind copies.
+ * Finished jobs stay queryable until they fall out of the history, at which point any file they produced is deleted.
+ */
+@Service
+@Log4j2
+public class JobService {
+
+	@Autowired
+	private FileService fileService;
+
+	@Autowired
+	private TransferService transferService;
+
+	@Autowired
+	private SizeService sizeService;
+
+	@Autowired
+	private ZipService zipService;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Value("${vuedisk.jobs.max-concurrent}")
+	private int maxConcurrent;
+
+	@Value("${vuedisk.jobs.queue-capacity}")
+	private int queueCapacity;
+
+	@Value("${vuedisk.jobs.history-size}")
+	private int historySize;
+
+	private ThreadPoolExecutor executor;
+
+	private final ExecutorService sizeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+	private final Deque<Job> history = new ConcurrentLinkedDeque<>();
+
+	@FunctionalInterface
+	public interface JobTask {
+
+		void run(Job job) throws Exception;
+
+	}
+
+	@PostConstruct
+	public void init() {
+		executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(queueCapacity));
+		Gauge.builder("vuedisk.jobs.active", this, JobService::getActiveCount).register(meterRegistry);
+		Gauge.builder("vuedisk.jobs.queued", this, JobService::getQueuedCount).register(meterRegistry);
+		fileService.delete(getResultsDir().toFile());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		jobs.values().forEach(job -> job.getProgress().setStopped(true));
+		executor.shutdownNow();
+		sizeExecutor.shutdownNow();
+	}
+
+	public Job submitCopy(File sourceDir, File destinationDir, List<String> files) {
+		return submit("copy", describe(sourceDir, files) + " to " + destinationDir.getName(),
+				job -> transferService.copy(job.getProgress(), sourceDir, destinationDir, files));
+	}
+
+	public Job submitMove(File sourceDir, File destinationDir, List<String> files) {
+		return submit("cut", describe(sourceDir, files) + " to " + destinationDir.getName(),
+				job -> transferService.move(job.getProgress(), sourceDir, destinationDir, files));
+	}
+
+	public Job submitDelete(File sourceDir, List<String> files) {
+		return submit("delete", describe(sourceDir, files),
+				job -> fileService.delete(job.getProgress(), sourceDir, files));
+	}
+
+	public Job submitSize(File sourceDir, List<String> files) {
+		return submit(sizeExecutor, "size", describe(sourceDir, files),
+				job -> sizeService.size(job.getProgress(), sourceDir, files));
+	}
+
+	public Job submitZip(File sourceDir, List<String> files, boolean store) {
+		return submit("download-zip", describe(sourceDir, files), job -> {
+			Path zip = getResultsDir().resolve(job.getId() + ".zip");
+			Files.createDirectories(zip.getParent());
+			try (OutputStream out = new ProgressOutputStream(new BufferedOutputStream(Files.newOutputStream(zip),
+					64 * 1024), job.getProgress())) {
+				zipService.write(sourceDir, files, out, store);
+			} catch (IOException e) {
+				Files.deleteIfExists(zip);
+				throw e;
+			}
+			job.setResult(zip);
+		});
+	}
+
+	public Job submit(String type, String description, JobTask task) {
+		return submit(executor, type, description, task);
+	}
+
+	private Job submit(ExecutorService executor, String type, String description, JobTask task) {
+		Job job = new Job(UUID.randomUUID().toString(), type, description);
+		jobs.put(job.getId(), job);
+		try {
+			job.setFuture(executor.submit(() -> run(job, task)));
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			throw new RejectedExecutionException("Too many jobs are queued, try again later", e);
+		}
+		return job;
+	}
+
+	public Job get(String id) {
+		return jobs.get(id);
+	}
+
+	public List<Job> list() {
+		List<Job> list = new ArrayList<>(jobs.values());
+		list.sort(Comparator.comparingLong(Job::getCreatedAt).reversed());
+		return list;
+	}
+
+	public Job cancel(String id) {
+		Job job = jobs.get(id);
+		if (job == null) {
+			return null;
+		}
+		job.getProgress().setStopped(true);
+		Future<?> future = job.getFuture();
+		if (future != null) {
+			// Drops it from the queue, a running job notices the stopped flag and finishes itself
+			future.cancel(false);
+		}
+		if (job.compareAndSetState(JobState.QUEUED, JobState.CANCELLED)) {
+			finish(job, JobState.CANCELLED, null);
+		}
+		return job;
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public int getQueuedCount() {
+		return executor.getQueue().size();
+	}
+
+	private void run(Job job, JobTask task) {
+		if (!job.compareAndSetState(JobState.QUEUED, JobState.RUNNING)) {
+			// Cancelled while queued, cancel() has already finished it
+			return;
+		}
+		if (job.getProgress().isStopped()) {
+			finish(job, JobState.CANCELLED, null);
+			return;
+		}
+		job.setStartedAt(System.currentTimeMillis());
+		try {
+			task.run(job);
+			JobProgress progress = job.getProgress();
+			if (progress.isStopped()) {
+				finish(job, JobState.CANCELLED, null);
+			} else if (progress.getFailures() > 0) {
+				finish(job, JobState.FAILED, progress.getFailures() + " item(s) failed");
+			} else {
+				finish(job, JobState.COMPLETED, null);
+			}
+		} catch (Exception e) {
+			log.error("Job {} ({}) failed", job.getId(), job.getType(), e);
+			finish(job, job.getProgress().isStopped() ? JobState.CANCELLED : JobState.FAILED, e.getMessage());
+		}
+	}
+
+	private void finish(Job job, JobState state, String error) {
+		job.setError(error);
+		job.setFinishedAt(System.currentTimeMillis());
+		job.setState(state);
+		job.getProgress().setFinished(true);
+		if (job.getStartedAt() > 0) {
+			Timer.builder("vuedisk.jobs.duration").tag("type", job.getType()).tag("state", state.name())
+					.register(meterRegistry).record(job.getFinishedAt() - job.getStartedAt(), TimeUnit.MILLISECONDS);
+			DistributionSummary.builder("vuedisk.jobs.bytes").baseUnit("bytes").tag("type", job.getType())
+					.register(meterRegistry).record(job.getBytes());
+		}
+		history.addLast(job);
+		while (history.size() > historySize) {
+			Job old = history.pollFirst();
+			if (old == null) {
+				break;
+			}
+			jobs.remove(old.getId());
+			if (old.getResult() != null) {
+				fileService.deleteSilently(old.getResult().toFile());
+			}
+		}
+	}
+
+	private Path getResultsDir() {
+		return fileService.getCacheDir().resolve("jobs");
+	}
+
+	private String describe(File sourceDir, List<String> files) {
+		if (files.size() == 1) {
+			return files.get(0);
+		}
+		return files.size() + " items in " + (sourceDir.getName().isEmpty() ? "/" : sourceDir.getName());
+	}
+
+	/**
+	 * Counts the bytes written and aborts the write once the job is cancelled.
+	 */
+	private static class ProgressOutputStream extends FilterOutputStream {
+
+		private final JobProgress progress;
+
+		ProgressOutputStream(OutputStream out, JobProgress progress) {
+			super(out);
+			this.progress = progress;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			checkStopped();
+			out.write(b);
+			progress.addBytes(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			checkStopped();
+			out.write(b, off, len);
+			progress.addBytes(len);
+		}
+
+		private void checkStopped() throws IOException {
+			if (progress.isStopped()) {
+				throw new IOException("Job cancelled");
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,233 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import com.csetutorials.vuedisk.beans.FilesListObj;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps sorted directory listings in memory. An entry is dropped as soon as the {@link WatchService} reports an
+ * event for its directory, and is additionally validated against the directory mtime on every hit for
+ * filesystems which don't deliver watch events (NFS, SMB, FUSE).
+ */
+@Service
+@Log4j2
+public class ListingCacheService {
+
+	@Value("${vuedisk.listing-cache.max-items}")
+	private long maxItems;
+
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private final AtomicLong generation = new AtomicLong();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private long cachedItems;
+
+	private WatchService watchService;
+
+	@PostConstruct
+	public void init() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException | UnsupportedOperationException e) {
+			log.warn("Watch service unavailable, listing cache will rely on mtime checks only", e);
+			return;
+		}
+		Thread watcher = new Thread(this::watch, "listing-cache-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	@PreDestroy
+	public void destroy() throws IOException {
+		if (watchService != null) {
+			watchService.close();
+		}
+	}
+
+	public List<FilesListObj> get(Path dir, Function<Path, List<FilesListObj>> loader) {
+		Path key = dir.toAbsolutePath().normalize();
+		FileTime mtime = lastModified(key);
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.get(key);
+		}
+		if (entry != null && entry.mtime.equals(mtime)) {
+			hits.increment();
+			return entry.listing;
+		}
+		misses.increment();
+		long startGeneration = generation.get();
+		List<FilesListObj> listing = Collections.unmodifiableList(loader.apply(key));
+		if (mtime.toMillis() == 0) {
+			return listing;
+		}
+		WatchKey watchKey = register(key);
+		synchronized (entries) {
+			// Something was invalidated while we were reading the directory, the listing might already be stale
+			if (generation.get() != startGeneration) {
+				return listing;
+			}
+			// Registering an already watched dir hands back its existing key, which must stay live for the new entry
+			Entry old = entries.remove(key);
+			if (old != null) {
+				cachedItems -= old.listing.size();
+				if (old.watchKey != null && !old.watchKey.equals(watchKey)) {
+					old.watchKey.cancel();
+				}
+			}
+			entries.put(key, new Entry(listing, mtime, watchKey));
+			cachedItems += listing.size();
+			Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+			while (cachedItems > maxItems && entries.size() > 1 && iterator.hasNext()) {
+				Map.Entry<Path, Entry> eldest = iterator.next();
+				if (eldest.getKey().equals(key)) {
+					continue;
+				}
+				iterator.remove();
+				release(eldest.getKey(), eldest.getValue());
+			}
+		}
+		return listing;
+	}
+
+	public void invalidate(Path dir) {
+		Path key = dir.toAbsolutePath().normalize();
+		synchronized (entries) {
+			generation.incrementAndGet();
+			remove(key);
+		}
+	}
+
+	public void invalidateTree(Path root) {
+		Path key = root.toAbsolutePath().normalize();
+		synchronized (entries) {
+			generation.incrementAndGet();
+			Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Path, Entry> entry = iterator.next();
+				if (entry.getKey().startsWith(key)) {
+					iterator.remove();
+					release(entry.getKey(), entry.getValue());
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			generation.incrementAndGet();
+			entries.forEach(this::release);
+			entries.clear();
+		}
+	}
+
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		for (Path path : event.getPaths()) {
+			invalidateTree(path);
+			if (path.getParent() != null) {
+				invalidate(path.getParent());
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("hits", getHits());
+		map.put("misses", getMisses());
+		synchronized (entries) {
+			map.put("directories", entries.size());
+			map.put("items", cachedItems);
+		}
+		map.put("maxItems", maxItems);
+		return map;
+	}
+
+	private void remove(Path key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			release(key, old);
+		}
+	}
+
+	private void release(Path key, Entry entry) {
+		cachedItems -= entry.listing.size();
+		if (entry.watchKey != null) {
+			entry.watchKey.cancel();
+		}
+	}
+
+	private WatchKey register(Path dir) {
+		if (watchService == null) {
+			return null;
+		}
+		try {
+			return dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+			log.debug("Couldn't watch dir {}, falling back to mtime checks", dir, e);
+			return null;
+		}
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey watchKey = watchService.take();
+				boolean overflow = false;
+				for (WatchEvent<?> event : watchKey.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						overflow = true;
+					}
+				}
+				if (overflow) {
+					invalidateAll();
+				} else {
+					invalidate((Path) watchKey.watchable());
+				}
+				watchKey.reset();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			log.debug("Listing cache watcher stopped");
+		}
+	}
+
+	private FileTime lastModified(Path dir) {
+		try {
+			return Files.getLastModifiedTime(dir);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private record Entry(List<FilesListObj> listing, FileTime mtime, WatchKey watchKey) {
+	}
+
+}
@@ -0,0 +1,319 @@
+package com.csetutorials.vuedisk.services;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Serves files the way a static file server would: validators ({@code ETag} from inode, mtime and size, plus
+ * {@code Last-Modified}) with 304 answers, single and multiple byte ranges honouring {@code If-Range}, and bodies
+ * handed to Tomcat's sendfile when the connector supports it, {@link FileChannel#transferTo} otherwise.
+ */
+@Service
+@Log4j2
+public class MediaStreamService {
+
+	private static final boolean UNIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * More ranges than this in one request are answered with the whole file.
+	 */
+	private static final int MAX_RANGES = 16;
+
+	@Value("${vuedisk.media.cache-control}")
+	private String cacheControl;
+
+	private record Range(long start, long end) {
+
+		long length() {
+			return end - start + 1;
+		}
+
+	}
+
+	/**
+	 * Produces the bytes of a range when they shouldn't come straight from the file.
+	 */
+	@FunctionalInterface
+	public interface RangeWriter {
+
+		void write(Path path, BasicFileAttributes attributes, long start, long length, OutputStream out)
+				throws IOException;
+
+	}
+
+	/**
+	 * Writes the file, or the requested ranges of it, as the response to a GET or HEAD.
+	 *
+	 * @param inline whether the browser should show the file rather than save it
+	 */
+	public void serve(File file, boolean inline, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		serve(file, inline, null, request, response);
+	}
+
+	/**
+	 * Same as {@link #serve(File, boolean, HttpServletRequest, HttpServletResponse)}, with the body coming from
+	 * {@code writer} instead of sendfile when it isn't {@code null}.
+	 */
+	public void serve(File file, boolean inline, RangeWriter writer, HttpServletRequest request,
+					  HttpServletResponse response) throws IOException {
+		Path path = file.toPath();
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		if (!attributes.isRegularFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		long size = attributes.size();
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		String etag = etag(path, attributes);
+
+		response.setHeader(HttpHeaders.ETAG, etag);
+		response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+		response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		if (notModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		String contentType = contentType(file.getName());
+		ContentDisposition.Builder disposition = inline ? ContentDisposition.inline() : ContentDisposition.attachment();
+		if (StandardCharsets.US_ASCII.newEncoder().canEncode(file.getName())) {
+			disposition.filename(file.getName());
+		} else {
+			disposition.filename(file.getName(), StandardCharsets.UTF_8);
+		}
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, disposition.build().toString());
+
+		List<Range> ranges = ranges(request, etag, lastModified, size);
+		if (ranges == null) {
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+		boolean head = "HEAD".equals(request.getMethod());
+		if (ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(contentType);
+			response.setContentLengthLong(size);
+			if (!head) {
+				send(path, attributes, new Range(0, size - 1), writer, request, response);
+			}
+		} else if (ranges.size() == 1) {
+			Range range = ranges.get(0);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType(contentType);
+			response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range.start() + "-" + range.end() + "/" + size);
+			response.setContentLengthLong(range.length());
+			if (!head) {
+				send(path, attributes, range, writer, request, response);
+			}
+		} else {
+			sendMultipart(path, attributes, ranges, contentType, head, writer, response);
+		}
+	}
+
+	private boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			return matches(ifNoneMatch, etag);
+		}
+		long ifModifiedSince = dateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+		return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	private boolean matches(String header, String etag) {
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the ranges to send, empty for the whole file and {@code null} if none of them can be satisfied.
+	 */
+	private List<Range> ranges(HttpServletRequest request, String etag, long lastModified, long size) {
+		String header = request.getHeader(HttpHeaders.RANGE);
+		if (header == null || !header.startsWith("bytes=")) {
+			return List.of();
+		}
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				if (!ifRange.equals(etag)) {
+					return List.of();
+				}
+			} else if (dateHeader(request, HttpHeaders.IF_RANGE) / 1000 != lastModified / 1000) {
+				return List.of();
+			}
+		}
+		List<Range> ranges = new ArrayList<>();
+		for (String spec : header.substring(6).split(",")) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return List.of();
+			}
+			long start;
+			long end;
+			try {
+				if (dash == 0) {
+					long suffix = Long.parseLong(spec.substring(1));
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+				}
+			} catch (NumberFormatException e) {
+				// A malformed Range header is ignored rather than rejected
+				return List.of();
+			}
+			if (start <= end && start < size) {
+				ranges.add(new Range(start, end));
+			}
+		}
+		if (ranges.isEmpty()) {
+			return null;
+		}
+		return ranges.size() > MAX_RANGES ? List.of() : ranges;
+	}
+
+	private long dateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	private void send(Path path, BasicFileAttributes attributes, Range range, RangeWriter writer,
+					  HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (range.length() <= 0) {
+			return;
+		}
+		if (writer == null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			// Tomcat writes the file itself once the servlet returns, straight from the page cache to the socket
+			request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_START, range.start());
+			request.setAttribute(SENDFILE_END, range.end() + 1);
+			return;
+		}
+		OutputStream out = response.getOutputStream();
+		write(path, attributes, range, writer, out);
+		out.flush();
+	}
+
+	private void sendMultipart(Path path, BasicFileAttributes attributes, List<Range> ranges, String contentType,
+							   boolean head, RangeWriter writer, HttpServletResponse response) throws IOException {
+		long size = attributes.size();
+		String boundary = UUID.randomUUID().toString();
+		List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+		long length = 0;
+		for (Range range : ranges) {
+			byte[] partHeader = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType + "\r\nContent-Range: bytes "
+					+ range.start() + "-" + range.end() + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(partHeader);
+			length += partHeader.length + range.length();
+		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		length += end.length;
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(length);
+		if (head) {
+			return;
+		}
+		OutputStream out = response.getOutputStream();
+		for (int i = 0; i < ranges.size(); i++) {
+			out.write(partHeaders.get(i));
+			write(path, attributes, ranges.get(i), writer, out);
+		}
+		out.write(end);
+		out.flush();
+	}
+
+	private void write(Path path, BasicFileAttributes attributes, Range range, RangeWriter writer, OutputStream out)
+			throws IOException {
+		if (writer != null) {
+			writer.write(path, attributes, range.start(), range.length(), out);
+			return;
+		}
+		WritableByteChannel target = Channels.newChannel(out);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long position = range.start();
+			long remaining = range.length();
+			while (remaining > 0) {
+				long transferred = channel.transferTo(position, remaining, target);
+				if (transferred <= 0) {
+					throw new IOException(path + " shrank while it was being sent");
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+
+	public String contentType(String fileName) {
+		return MediaTypeFactory.getMediaType(fileName).orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+	}
+
+	/**
+	 * Strong validator which changes whenever the file is replaced (inode), written (mtime) or truncated (size).
+	 */
+	public String etag(Path path, BasicFileAttributes attributes) {
+		long inode = 0;
+		if (UNIX_VIEW) {
+			try {
+				inode = (Long) Files.getAttribute(path, "unix:ino");
+			} catch (IOException | UnsupportedOperationException e) {
+				log.debug("Couldn't read inode of {}", path, e);
+			}
+		} else if (attributes.fileKey() != null) {
+			inode = attributes.fileKey().hashCode();
+		}
+		return "\"" + Long.toHexString(inode) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+				+ "-" + Long.toHexString(attributes.size()) + "\"";
+	}
+
+}
@@ -0,0 +1,345 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import com.csetutorials.vuedisk.beans.FilesListObj;
+import com.csetutorials.vuedisk.beans.ListingPage;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Pages through a directory. Unsorted pages stream the directory and stop after the page, so they cost the page
+ * and not the directory. A sorted page has to look at every entry; the first one sorts the whole directory once
+ * and keeps that order as a snapshot the following pages are served from, so they cost just their own entries and
+ * don't shift when sizes or mtimes change between pages. Directories with more than
+ * {@code vuedisk.list.snapshot-max-items} entries are instead selected with a bounded heap per page, holding at
+ * most {@code limit + 1} candidates.
+ * <p>
+ * The cursor carries the snapshot and the sort key of the last returned entry. When the snapshot has expired, was
+ * evicted or VueDisk changed the directory, the next page is selected afresh behind that key, which keeps pages
+ * stable while files are added or removed in front of it.
+ */
+@Service
+@Log4j2
+public class PagedListingService {
+
+	@Autowired
+	private FileService fileService;
+
+	@Autowired
+	private SizeIndexService sizeIndex;
+
+	@Value("${vuedisk.list.max-page-size}")
+	private int maxPageSize;
+
+	@Value("${vuedisk.list.snapshot-max-items}")
+	private long snapshotMaxItems;
+
+	@Value("${vuedisk.list.snapshot-ttl-ms}")
+	private long snapshotTtlMs;
+
+	private final LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long snapshotItems;
+
+	public ListingPage list(File dir, int limit, String cursor, String sort, String order) throws IOException {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		limit = Math.min(limit, maxPageSize);
+		ListingPage page = new ListingPage();
+		if (!dir.isDirectory()) {
+			page.setEntries(Collections.emptyList());
+			return page;
+		}
+		if ("none".equals(sort)) {
+			return unsortedPage(dir.toPath(), limit, cursor);
+		}
+		Comparator<Candidate> comparator = comparator(sort, order);
+		Cursor after = cursor == null || cursor.isEmpty() ? null : decodeCursor(cursor);
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		Snapshot snapshot = after == null ? null : snapshot(after.snapshot(), path, sort, order);
+		if (snapshot != null) {
+			return snapshotPage(snapshot, after.offset(), limit);
+		}
+		List<Candidate> all = new ArrayList<>();
+		// Max-heap of the smallest limit + 1 candidates behind the cursor, the extra one tells us whether there's more
+		PriorityQueue<Candidate> heap = null;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+			for (Path child : stream) {
+				Candidate candidate = candidate(child, sort);
+				if (candidate == null) {
+					continue;
+				}
+				if (heap != null) {
+					offer(heap, candidate, after, comparator, limit);
+					continue;
+				}
+				all.add(candidate);
+				if (all.size() > snapshotMaxItems) {
+					// Too big to keep sorted in memory, fall back to selecting just this page
+					heap = new PriorityQueue<>(limit + 1, comparator.reversed());
+					for (Candidate kept : all) {
+						offer(heap, kept, after, comparator, limit);
+					}
+					all = null;
+				}
+			}
+		}
+		if (heap != null) {
+			List<Candidate> candidates = new ArrayList<>(heap);
+			candidates.sort(comparator);
+			if (candidates.size() > limit) {
+				candidates = candidates.subList(0, limit);
+				page.setNextCursor(encodeCursor(null, 0, candidates.get(limit - 1)));
+			}
+			page.setEntries(candidates.stream().map(c -> fileService.toListObj(c.path(), c.attributes())).toList());
+			return page;
+		}
+		all.sort(comparator);
+		int from = 0;
+		if (after != null) {
+			int found = Collections.binarySearch(all, after.last(), comparator);
+			from = found >= 0 ? found + 1 : -found - 1;
+		}
+		int to = Math.min(from + limit, all.size());
+		if (to < all.size()) {
+			String id = store(new Snapshot(path, sort, order,
+					all.stream().map(Candidate::withoutAttributes).toList(), System.currentTimeMillis()));
+			page.setNextCursor(encodeCursor(id, to, all.get(to - 1)));
+		}
+		page.setEntries(all.subList(from, to).stream()
+				.map(c -> fileService.toListObj(c.path(), c.attributes())).toList());
+		return page;
+	}
+
+	/**
+	 * Keeps the sort order of the directory as of its first page, the entries' attributes are read again so that
+	 * they are shown as they are now.
+	 */
+	private ListingPage snapshotPage(Snapshot snapshot, int offset, int limit) {
+		ListingPage page = new ListingPage();
+		List<Candidate> entries = snapshot.entries();
+		int from = Math.min(offset, entries.size());
+		int to = Math.min(from + limit, entries.size());
+		List<FilesListObj> list = new ArrayList<>(to - from);
+		for (Candidate candidate : entries.subList(from, to)) {
+			Path path = snapshot.dir().resolve(candidate.name());
+			try {
+				list.add(fileService.toListObj(path, Files.readAttributes(path, BasicFileAttributes.class)));
+			} catch (IOException e) {
+				log.debug("Skipping entry {} gone since the first page", path, e);
+			}
+		}
+		if (to < entries.size()) {
+			page.setNextCursor(encodeCursor(snapshot.id(), to, entries.get(to - 1)));
+		}
+		page.setEntries(list);
+		return page;
+	}
+
+	private void offer(PriorityQueue<Candidate> heap, Candidate candidate, Cursor after,
+					   Comparator<Candidate> comparator, int limit) {
+		if (after != null && comparator.compare(candidate, after.last()) <= 0) {
+			return;
+		}
+		if (heap.size() <= limit) {
+			heap.add(candidate);
+		} else if (comparator.compare(candidate, heap.peek()) < 0) {
+			heap.poll();
+			heap.add(candidate);
+		}
+	}
+
+	private String store(Snapshot snapshot) {
+		synchronized (snapshots) {
+			snapshots.put(snapshot.id(), snapshot);
+			snapshotItems += snapshot.entries().size();
+			Iterator<Snapshot> iterator = snapshots.values().iterator();
+			while (snapshotItems > snapshotMaxItems && iterator.hasNext()) {
+				Snapshot eldest = iterator.next();
+				if (eldest == snapshot) {
+					continue;
+				}
+				iterator.remove();
+				snapshotItems -= eldest.entries().size();
+			}
+		}
+		return snapshot.id();
+	}
+
+	private Snapshot snapshot(String id, Path dir, String sort, String order) {
+		if (id == null) {
+			return null;
+		}
+		synchronized (snapshots) {
+			Snapshot snapshot = snapshots.get(id);
+			if (snapshot == null) {
+				return null;
+			}
+			if (System.currentTimeMillis() - snapshot.created() > snapshotTtlMs) {
+				snapshots.remove(id);
+				snapshotItems -= snapshot.entries().size();
+				return null;
+			}
+			return snapshot.dir().equals(dir) && snapshot.sort().equals(sort) && snapshot.order().equals(order)
+					? snapshot : null;
+		}
+	}
+
+	@Scheduled(fixedDelayString = "${vuedisk.list.snapshot-ttl-ms}")
+	public void expireSnapshots() {
+		long now = System.currentTimeMillis();
+		synchronized (snapshots) {
+			snapshots.values().removeIf(snapshot -> {
+				boolean expired = now - snapshot.created() > snapshotTtlMs;
+				if (expired) {
+					snapshotItems -= snapshot.entries().size();
+				}
+				return expired;
+			});
+		}
+	}
+
+	/**
+	 * Drops the snapshots of directories VueDisk changed, their next pages are then selected from what is on disk.
+	 */
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		synchronized (snapshots) {
+			for (Path path : event.getPaths()) {
+				Path changed = path.toAbsolutePath().normalize();
+				snapshots.values().removeIf(snapshot -> {
+					boolean stale = snapshot.dir().startsWith(changed) || snapshot.dir().equals(changed.getParent());
+					if (stale) {
+						snapshotItems -= snapshot.entries().size();
+					}
+					return stale;
+				});
+			}
+		}
+	}
+
+	private ListingPage unsortedPage(Path dir, int limit, String cursor) throws IOException {
+		long offset = cursor == null || cursor.isEmpty() ? 0 : parseOffset(cursor);
+		List<FilesListObj> entries = new ArrayList<>(limit);
+		ListingPage page = new ListingPage();
+		long index = 0;
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (index++ < offset) {
+					continue;
+				}
+				if (entries.size() == limit) {
+					// Unreadable entries were skipped, so resume from this one rather than offset + limit
+					page.setNextCursor(String.valueOf(index - 1));
+					break;
+				}
+				Candidate candidate = candidate(path, "none");
+				if (candidate != null) {
+					entries.add(fileService.toListObj(candidate.path(), candidate.attributes()));
+				}
+			}
+		}
+		page.setEntries(entries);
+		return page;
+	}
+
+	private Candidate candidate(Path path, String sort) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			long key = switch (sort) {
+				case "modified" -> attributes.lastModifiedTime().toMillis();
+				case "size" -> size(path, attributes);
+				default -> 0;
+			};
+			return new Candidate(path, path.getFileName().toString(), attributes.isDirectory(), key, attributes);
+		} catch (IOException e) {
+			log.debug("Skipping unreadable entry {}", path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * The size shown for the entry, which for a directory is its indexed tree size rather than its inode's.
+	 */
+	private long size(Path path, BasicFileAttributes attributes) {
+		if (!attributes.isDirectory()) {
+			return attributes.size();
+		}
+		SizeIndexService.Entry indexed = sizeIndex.lookup(path, attributes.lastModifiedTime().toMillis());
+		return indexed != null ? indexed.bytes() : 0;
+	}
+
+	private Comparator<Candidate> comparator(String sort, String order) {
+		Comparator<Candidate> byKey = switch (sort) {
+			case "name" -> Comparator.comparing(Candidate::name);
+			case "size", "modified" -> Comparator.comparingLong(Candidate::key).thenComparing(Candidate::name);
+			default -> throw new IllegalArgumentException("Unsupported sort key " + sort);
+		};
+		if ("desc".equals(order)) {
+			byKey = byKey.reversed();
+		} else if (!"asc".equals(order)) {
+			throw new IllegalArgumentException("Unsupported sort order " + order);
+		}
+		// Directories always come first, like the non-paginated listing
+		return Comparator.comparing((Candidate c) -> !c.dir()).thenComparing(byKey);
+	}
+
+	private String encodeCursor(String snapshot, int offset, Candidate candidate) {
+		String raw = (snapshot == null ? "" : snapshot) + ":" + offset + ":" + (candidate.dir() ? "d" : "f") + ":"
+				+ candidate.key() + ":" + candidate.name();
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Cursor decodeCursor(String cursor) {
+		try {
+			String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			String[] parts = raw.split(":", 5);
+			return new Cursor(parts[0].isEmpty() ? null : parts[0], Integer.parseInt(parts[1]),
+					new Candidate(null, parts[4], parts[2].equals("d"), Long.parseLong(parts[3]), null));
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid cursor", e);
+		}
+	}
+
+	private long parseOffset(String cursor) {
+		try {
+			return Long.parseLong(cursor);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid cursor", e);
+		}
+	}
+
+	private record Candidate(Path path, String name, boolean dir, long key, BasicFileAttributes attributes) {
+
+		Candidate withoutAttributes() {
+			return new Candidate(null, name, dir, key, null);
+		}
+
+	}
+
+	private record Cursor(String snapshot, int offset, Candidate last) {
+	}
+
+	private record Snapshot(String id, Path dir, String sort, String order, List<Candidate> entries, long created) {
+
+		Snapshot(Path dir, String sort, String order, List<Candidate> entries, long created) {
+			this(UUID.randomUUID().toString(), dir, sort, order, entries, created);
+		}
+
+	}
+
+}
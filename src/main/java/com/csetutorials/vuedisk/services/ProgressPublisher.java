@@ -0,0 +1,182 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import com.csetutorials.vuedisk.beans.ProgressEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Pushes progress of running operations to SSE clients. One scheduler thread samples every subscription at
+ * {@code vuedisk.progress.interval-ms}, so however often the counters change a client gets at most one event per
+ * interval, and none at all while nothing moves. Sends run on virtual threads; a client that is still busy with the
+ * previous event simply skips a tick instead of holding up the others.
+ */
+@Service
+@Log4j2
+public class ProgressPublisher {
+
+	@Value("${vuedisk.progress.interval-ms}")
+	private long intervalMs;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	private ScheduledExecutorService scheduler;
+
+	private ExecutorService senders;
+
+	@PostConstruct
+	public void init() {
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "progress-publisher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		senders = Executors.newVirtualThreadPerTaskExecutor();
+		scheduler.scheduleAtFixedRate(this::publish, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+		Gauge.builder("vuedisk.sse.emitters", subscriptions, Set::size).description("Open progress streams")
+				.register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		scheduler.shutdownNow();
+		senders.shutdownNow();
+		subscriptions.forEach(subscription -> subscription.emitter.complete());
+	}
+
+	/**
+	 * Streams the progress to the emitter until the operation finishes.
+	 *
+	 * @param decorator    fills in the operation specific parts of each event, e.g. a human readable message
+	 * @param onDisconnect called if the client goes away before the operation finished
+	 */
+	public void subscribe(SseEmitter emitter, JobProgress progress, Consumer<ProgressEvent> decorator,
+						  Runnable onDisconnect) {
+		Subscription subscription = new Subscription(emitter, progress, decorator, onDisconnect);
+		emitter.onCompletion(() -> subscriptions.remove(subscription));
+		emitter.onTimeout(subscription::disconnect);
+		emitter.onError(e -> subscription.disconnect());
+		subscriptions.add(subscription);
+	}
+
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	private void publish() {
+		long now = System.nanoTime();
+		for (Subscription subscription : subscriptions) {
+			try {
+				subscription.tick(now);
+			} catch (RuntimeException e) {
+				log.warn("Problem while publishing progress", e);
+				subscription.disconnect();
+			}
+		}
+	}
+
+	private class Subscription {
+
+		private final SseEmitter emitter;
+
+		private final JobProgress progress;
+
+		private final Consumer<ProgressEvent> decorator;
+
+		private final Runnable onDisconnect;
+
+		private final AtomicBoolean sending = new AtomicBoolean();
+
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private long lastBytes;
+
+		private long lastItems = -1;
+
+		private long lastNanos = System.nanoTime();
+
+		Subscription(SseEmitter emitter, JobProgress progress, Consumer<ProgressEvent> decorator,
+					 Runnable onDisconnect) {
+			this.emitter = emitter;
+			this.progress = progress;
+			this.decorator = decorator;
+			this.onDisconnect = onDisconnect;
+		}
+
+		void tick(long now) {
+			if (closed.get() || !sending.compareAndSet(false, true)) {
+				return;
+			}
+			boolean finished = progress.isFinished();
+			long bytes = progress.getBytes();
+			long items = progress.getItems();
+			if (!finished && bytes == lastBytes && items == lastItems) {
+				sending.set(false);
+				return;
+			}
+			ProgressEvent event = event(bytes, items, finished, now);
+			senders.execute(() -> send(event, finished));
+		}
+
+		private ProgressEvent event(long bytes, long items, boolean finished, long now) {
+			long elapsedNanos = Math.max(1, now - lastNanos);
+			long rate = (bytes - lastBytes) * 1_000_000_000L / elapsedNanos;
+			lastBytes = bytes;
+			lastItems = items;
+			lastNanos = now;
+			ProgressEvent event = new ProgressEvent();
+			event.setBytes(bytes);
+			event.setItems(items);
+			event.setFailures(progress.getFailures());
+			event.setTotalBytes(progress.getTotalBytes());
+			event.setRate(rate);
+			if (!finished && rate > 0 && progress.getTotalBytes() > bytes) {
+				event.setEta((progress.getTotalBytes() - bytes) / rate);
+			}
+			event.setFinished(finished);
+			decorator.accept(event);
+			return event;
+		}
+
+		private void send(ProgressEvent event, boolean last) {
+			try {
+				emitter.send(SseEmitter.event().data(event, MediaType.APPLICATION_JSON));
+				if (last) {
+					closed.set(true);
+					subscriptions.remove(this);
+					emitter.complete();
+				}
+			} catch (Exception e) {
+				disconnect();
+			} finally {
+				sending.set(false);
+			}
+		}
+
+		void disconnect() {
+			if (closed.compareAndSet(false, true)) {
+				subscriptions.remove(this);
+				onDisconnect.run();
+				emitter.complete();
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,1078 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import com.csetutorials.vuedisk.beans.SearchPage;
+import com.csetutorials.vuedisk.beans.SearchResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Finds files anywhere under the base directory by parts of their name and, when
+ * {@code vuedisk.search.index-content} is on, by the words in text files. Names are indexed by trigram: a query
+ * only looks at the files containing every trigram of it, then checks the name itself. Content is indexed by
+ * whole word.
+ * <p>
+ * The index is built in the background on the first start and kept at {@code .cache/vuedisk/search-index.dat}
+ * afterwards. Changes made through VueDisk are picked up from {@link FileChangeEvent}s, and others by the reconciler,
+ * which rereads every directory whose mtime has changed since it was indexed. All updates run on one thread, one
+ * batch at a time under a write lock, so searches never wait for a directory walk.
+ * <p>
+ * Changes are persisted by appending them to {@code search-index.journal}, which is replayed over the snapshot on
+ * start. The snapshot is only rewritten once the journal grows to a quarter of the index. Both are written by the
+ * indexing thread, the only one that modifies the index, so neither needs a lock.
+ */
+@Service
+@Log4j2
+public class SearchIndexService {
+
+	private static final int MAGIC = 0x56445358;
+
+	private static final int VERSION = 1;
+
+	private static final int BATCH_SIZE = 10000;
+
+	private static final int MIN_WORD = 2;
+
+	private static final int MAX_WORD = 64;
+
+	private static final int MIN_JOURNAL_RECORDS = 10000;
+
+	private static final byte JOURNAL_ADD = 1;
+
+	private static final byte JOURNAL_REMOVE = 2;
+
+	@Autowired
+	private ExtensionService extensionService;
+
+	@Value("${base.dir}")
+	private String baseDir;
+
+	@Value("${vuedisk.search.enabled}")
+	private boolean enabled;
+
+	@Value("${vuedisk.search.index-content}")
+	private boolean indexContent;
+
+	@Value("${vuedisk.search.content-max-bytes}")
+	private long contentMaxBytes;
+
+	@Value("${vuedisk.search.max-page-size}")
+	private int maxPageSize;
+
+	private Path root;
+
+	private Path indexFile;
+
+	private Path journalFile;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Document id by path relative to the base directory, '/' separated, so that a subtree is a contiguous key range.
+	 */
+	private final TreeMap<String, Integer> ids = new TreeMap<>();
+
+	/**
+	 * Documents by id, {@code null} once removed until the next compaction.
+	 */
+	private final ArrayList<Doc> docs = new ArrayList<>();
+
+	private int removedDocs;
+
+	/**
+	 * Bumped by every compaction, which renumbers the documents and so invalidates cursors.
+	 */
+	private int generation;
+
+	private final HashMap<Long, Postings> grams = new HashMap<>();
+
+	private final HashMap<String, Postings> words = new HashMap<>();
+
+	/**
+	 * Changes not yet appended to the journal.
+	 */
+	private final List<Change> pendingChanges = new ArrayList<>();
+
+	private final Object journalLock = new Object();
+
+	private volatile long journalRecords;
+
+	/**
+	 * Set when the files on disk no longer describe the index, because it was changed while nothing was journaled
+	 * or a journal write failed, so only a new snapshot will do.
+	 */
+	private volatile boolean snapshotStale;
+
+	/**
+	 * Set while the index is read back from disk.
+	 */
+	private boolean replaying;
+
+	private final AtomicBoolean reconciling = new AtomicBoolean();
+
+	private volatile boolean complete;
+
+	private ExecutorService updater;
+
+	private final LongAdder searches = new LongAdder();
+
+	private final LongAdder searchNanos = new LongAdder();
+
+	private record Doc(String key, String lowerName, boolean dir, long size, long lastModified) {
+	}
+
+	private record Update(String key, boolean dir, long size, long lastModified, Set<String> words) {
+	}
+
+	/**
+	 * A journaled change, {@code update} being {@code null} for a removal.
+	 */
+	private record Change(String key, Update update) {
+	}
+
+	/**
+	 * Ids of the documents containing a trigram or word, ascending. Ids are only ever appended in increasing
+	 * order, and compaction renumbers them without reordering, so the list stays sorted.
+	 */
+	private static final class Postings {
+
+		private int[] ids = new int[2];
+
+		private int size;
+
+		void add(int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+
+		boolean contains(int id) {
+			return Arrays.binarySearch(ids, 0, size, id) >= 0;
+		}
+
+		/**
+		 * Position of the first id greater than {@code after}.
+		 */
+		int after(int after) {
+			int index = Arrays.binarySearch(ids, 0, size, after + 1);
+			return index >= 0 ? index : -index - 1;
+		}
+
+		void renumber(int[] newIds) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				int id = newIds[ids[i]];
+				if (id >= 0) {
+					ids[kept++] = id;
+				}
+			}
+			size = kept;
+			if (size < ids.length / 4) {
+				ids = Arrays.copyOf(ids, Math.max(2, size));
+			}
+		}
+
+	}
+
+	@PostConstruct
+	public void init() {
+		root = Paths.get(baseDir).toAbsolutePath().normalize();
+		indexFile = root.resolve(".cache").resolve("vuedisk").resolve("search-index.dat");
+		journalFile = indexFile.resolveSibling("search-index.journal");
+		if (!enabled) {
+			return;
+		}
+		updater = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "search-indexer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		updater.execute(() -> {
+			long started = System.currentTimeMillis();
+			if (load()) {
+				reconcileNow();
+			} else {
+				sync(root);
+			}
+			complete = true;
+			if (snapshotStale) {
+				writeSnapshot();
+			}
+			log.info("Search index ready with {} entries after {} ms", docs.size() - removedDocs,
+					System.currentTimeMillis() - started);
+		});
+	}
+
+	@PreDestroy
+	public void destroy() throws InterruptedException {
+		if (updater == null) {
+			return;
+		}
+		updater.shutdownNow();
+		if (!updater.awaitTermination(10, TimeUnit.SECONDS)) {
+			log.warn("Search indexer didn't stop in time, its latest changes aren't saved");
+			return;
+		}
+		if (!complete) {
+			return;
+		}
+		if (snapshotStale) {
+			writeSnapshot();
+		} else {
+			appendJournal();
+		}
+	}
+
+	/**
+	 * Files whose name contains every whitespace separated part of the query or, with {@code content}, text files
+	 * containing every word of it, below {@code scope}, in index order.
+	 */
+	public SearchPage search(String query, File scope, boolean content, int limit, String cursor) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("limit must be positive");
+		}
+		limit = Math.min(limit, maxPageSize);
+		SearchPage page = new SearchPage();
+		page.setComplete(complete);
+		page.setResults(new ArrayList<>());
+		String scopeKey = key(scope.toPath());
+		if (!enabled || scopeKey == null) {
+			return page;
+		}
+		String prefix = scopeKey.isEmpty() ? "" : scopeKey + "/";
+		List<String> parts = content ? new ArrayList<>(tokenize(query)) : nameParts(query);
+		if (parts.isEmpty()) {
+			return page;
+		}
+		if (!content && parts.stream().allMatch(part -> part.length() < 3)) {
+			// Without a single trigram to narrow it down every name would have to be checked
+			throw new IllegalArgumentException("Search for at least 3 characters of a name");
+		}
+		long started = System.nanoTime();
+		lock.readLock().lock();
+		try {
+			int after = -1;
+			if (cursor != null && !cursor.isEmpty()) {
+				int dash = cursor.indexOf('-');
+				try {
+					if (dash < 0 || Integer.parseInt(cursor.substring(0, dash)) != generation) {
+						throw new IllegalArgumentException("The index changed since this cursor was issued");
+					}
+					after = Integer.parseInt(cursor.substring(dash + 1));
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid cursor " + cursor);
+				}
+			}
+			List<Postings> lists = new ArrayList<>();
+			for (String part : parts) {
+				if (content) {
+					Postings postings = words.get(part);
+					if (postings == null) {
+						return page;
+					}
+					lists.add(postings);
+				} else {
+					for (long gram : grams(part)) {
+						Postings postings = grams.get(gram);
+						if (postings == null) {
+							return page;
+						}
+						lists.add(postings);
+					}
+				}
+			}
+			lists.sort(Comparator.comparingInt(postings -> postings.size));
+			// One more than asked for, to tell whether there's a next page
+			List<Integer> found = new ArrayList<>();
+			Postings smallest = lists.get(0);
+			for (int i = smallest.after(after); i < smallest.size && found.size() <= limit; i++) {
+				int id = smallest.ids[i];
+				if (inAll(lists, id) && matches(docs.get(id), prefix, parts, content)) {
+					found.add(id);
+				}
+			}
+			if (found.size() > limit) {
+				found.remove(limit);
+				page.setNextCursor(generation + "-" + found.get(limit - 1));
+			}
+			for (int id : found) {
+				page.getResults().add(result(docs.get(id)));
+			}
+			return page;
+		} finally {
+			lock.readLock().unlock();
+			searches.increment();
+			searchNanos.add(System.nanoTime() - started);
+		}
+	}
+
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		if (!enabled) {
+			return;
+		}
+		for (Path path : event.getPaths()) {
+			Path normalized = path.toAbsolutePath().normalize();
+			String key = key(normalized);
+			if (key != null && !excluded(key)) {
+				updater.execute(() -> sync(normalized));
+			}
+		}
+	}
+
+	@Scheduled(initialDelayString = "${vuedisk.search.reconcile-interval-ms}",
+			fixedDelayString = "${vuedisk.search.reconcile-interval-ms}")
+	public void reconcile() {
+		if (enabled && complete && reconciling.compareAndSet(false, true)) {
+			updater.execute(() -> {
+				try {
+					reconcileNow();
+				} finally {
+					reconciling.set(false);
+				}
+			});
+		}
+	}
+
+	@Scheduled(fixedDelayString = "${vuedisk.search.flush-interval-ms}")
+	public void flush() {
+		if (!enabled || !complete) {
+			return;
+		}
+		synchronized (pendingChanges) {
+			if (pendingChanges.isEmpty() && !snapshotStale) {
+				return;
+			}
+		}
+		try {
+			updater.execute(this::persist);
+		} catch (RejectedExecutionException e) {
+			log.debug("Search indexer is shutting down, leaving the flush to it");
+		}
+	}
+
+	/**
+	 * Appends the pending changes to the journal, or writes a new snapshot once the journal has grown too long.
+	 * Runs on the indexing thread.
+	 */
+	private void persist() {
+		long live;
+		lock.readLock().lock();
+		try {
+			live = docs.size() - removedDocs;
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (snapshotStale || journalRecords >= Math.max(MIN_JOURNAL_RECORDS, live / 4)) {
+			writeSnapshot();
+		} else {
+			appendJournal();
+		}
+	}
+
+	private void appendJournal() {
+		List<Change> changes;
+		synchronized (pendingChanges) {
+			if (pendingChanges.isEmpty()) {
+				return;
+			}
+			changes = new ArrayList<>(pendingChanges);
+			pendingChanges.clear();
+		}
+		synchronized (journalLock) {
+			try {
+				Files.createDirectories(journalFile.getParent());
+				boolean fresh = !Files.exists(journalFile) || Files.size(journalFile) == 0;
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+						journalFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+					if (fresh) {
+						out.writeInt(MAGIC);
+						out.writeInt(VERSION);
+					}
+					for (Change change : changes) {
+						Update update = change.update();
+						if (update == null) {
+							out.writeByte(JOURNAL_REMOVE);
+							out.writeUTF(change.key());
+							continue;
+						}
+						out.writeByte(JOURNAL_ADD);
+						out.writeUTF(update.key());
+						out.writeBoolean(update.dir());
+						out.writeLong(update.size());
+						out.writeLong(update.lastModified());
+						out.writeInt(update.words().size());
+						for (String word : update.words()) {
+							out.writeUTF(word);
+						}
+					}
+				}
+				journalRecords += changes.size();
+			} catch (IOException e) {
+				// The journal may now end in a partial record, start over from a snapshot
+				snapshotStale = true;
+				log.error("Couldn't append to search index journal {}", journalFile, e);
+			}
+		}
+	}
+
+	/**
+	 * Writes the whole index and drops the journal. Runs on the indexing thread, or once it has stopped.
+	 */
+	private void writeSnapshot() {
+		synchronized (journalLock) {
+			synchronized (pendingChanges) {
+				// All of them are part of the snapshot
+				pendingChanges.clear();
+			}
+			try {
+				Files.createDirectories(indexFile.getParent());
+				Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeBoolean(indexContent);
+					// Written compacted, the ids in the file are the positions of the live documents
+					int[] newIds = new int[docs.size()];
+					int live = 0;
+					for (int id = 0; id < docs.size(); id++) {
+						newIds[id] = docs.get(id) == null ? -1 : live++;
+					}
+					out.writeInt(live);
+					for (Doc doc : docs) {
+						if (doc != null) {
+							out.writeUTF(doc.key());
+							out.writeBoolean(doc.dir());
+							out.writeLong(doc.size());
+							out.writeLong(doc.lastModified());
+						}
+					}
+					out.writeInt(words.size());
+					for (Map.Entry<String, Postings> entry : words.entrySet()) {
+						Postings postings = entry.getValue();
+						int count = 0;
+						for (int i = 0; i < postings.size; i++) {
+							if (newIds[postings.ids[i]] >= 0) {
+								count++;
+							}
+						}
+						out.writeUTF(entry.getKey());
+						out.writeInt(count);
+						for (int i = 0; i < postings.size; i++) {
+							if (newIds[postings.ids[i]] >= 0) {
+								out.writeInt(newIds[postings.ids[i]]);
+							}
+						}
+					}
+				}
+				Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				Files.deleteIfExists(journalFile);
+				journalRecords = 0;
+				snapshotStale = false;
+			} catch (IOException e) {
+				snapshotStale = true;
+				log.error("Couldn't write search index {}", indexFile, e);
+			}
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		long count = searches.sum();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("enabled", enabled);
+		map.put("complete", complete);
+		map.put("indexContent", indexContent);
+		lock.readLock().lock();
+		try {
+			map.put("entries", docs.size() - removedDocs);
+			map.put("removed", removedDocs);
+			map.put("trigrams", grams.size());
+			map.put("words", words.size());
+			map.put("generation", generation);
+		} finally {
+			lock.readLock().unlock();
+		}
+		synchronized (pendingChanges) {
+			map.put("pendingChanges", pendingChanges.size());
+		}
+		map.put("journalRecords", journalRecords);
+		map.put("searches", count);
+		map.put("avgSearchMs", count == 0 ? 0 : searchNanos.sum() / count / 1_000_000.0);
+		return map;
+	}
+
+	/**
+	 * Brings the index in line with the disk for everything at and below {@code start}, and refreshes its parent,
+	 * whose mtime changed along with it.
+	 */
+	private void sync(Path start) {
+		String startKey = key(start);
+		if (startKey == null || excluded(startKey)) {
+			return;
+		}
+		boolean indexed;
+		lock.readLock().lock();
+		try {
+			indexed = ids.containsKey(startKey) || !subtree(startKey).isEmpty();
+		} finally {
+			lock.readLock().unlock();
+		}
+		// Only needed to find what disappeared, so not for a subtree we know nothing about yet
+		Set<String> seen = indexed ? new HashSet<>() : null;
+		List<Update> batch = new ArrayList<>();
+		if (Files.exists(start, LinkOption.NOFOLLOW_LINKS)) {
+			try {
+				Files.walkFileTree(start, new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+						String key = key(dir);
+						if (excluded(key)) {
+							return FileVisitResult.SKIP_SUBTREE;
+						}
+						visit(dir, key, attributes, seen, batch);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						visit(file, key(file), attributes, seen, batch);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						log.debug("Couldn't index {}", file, e);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				log.warn("Couldn't index {}", start, e);
+			}
+		}
+		apply(batch);
+		if (seen != null) {
+			lock.writeLock().lock();
+			try {
+				List<String> gone = new ArrayList<>();
+				if (!seen.contains(startKey) && ids.containsKey(startKey)) {
+					gone.add(startKey);
+				}
+				for (String key : subtree(startKey).keySet()) {
+					if (!seen.contains(key)) {
+						gone.add(key);
+					}
+				}
+				gone.forEach(this::delete);
+				compactIfNeeded();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		if (!startKey.isEmpty()) {
+			refresh(start.getParent());
+		}
+	}
+
+	/**
+	 * Rereads each indexed directory whose mtime changed: entries which appeared or disappeared in it, and whole
+	 * subtrees for directories which appeared.
+	 */
+	private void reconcileNow() {
+		List<Doc> dirs = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for (Doc doc : docs) {
+				if (doc != null && doc.dir()) {
+					dirs.add(doc);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		int stale = 0;
+		for (Doc doc : dirs) {
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			Path dir = resolve(doc.key());
+			long lastModified;
+			try {
+				lastModified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+			} catch (IOException e) {
+				lastModified = -1;
+			}
+			if (lastModified != doc.lastModified()) {
+				syncChildren(dir, doc.key());
+				stale++;
+			}
+		}
+		if (stale > 0) {
+			log.info("Reindexed {} changed directories", stale);
+		}
+	}
+
+	private void syncChildren(Path dir, String dirKey) {
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+			sync(dir);
+			return;
+		}
+		Set<String> seen = new HashSet<>();
+		List<Update> batch = new ArrayList<>();
+		List<Path> newDirs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				String key = key(child);
+				if (excluded(key)) {
+					continue;
+				}
+				BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				boolean known;
+				lock.readLock().lock();
+				try {
+					known = ids.containsKey(key);
+				} finally {
+					lock.readLock().unlock();
+				}
+				if (attributes.isDirectory() && !known) {
+					seen.add(key);
+					newDirs.add(child);
+				} else {
+					visit(child, key, attributes, seen, batch);
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Couldn't reindex {}", dir, e);
+			return;
+		}
+		apply(batch);
+		lock.writeLock().lock();
+		try {
+			// Entries of this directory that are gone, each with its subtree
+			String prefix = dirKey.isEmpty() ? "" : dirKey + "/";
+			List<String> gone = new ArrayList<>();
+			String key = ids.ceilingKey(prefix);
+			while (key != null && key.startsWith(prefix)) {
+				int slash = key.indexOf('/', prefix.length());
+				if (key.equals(dirKey)) {
+					key = ids.higherKey(key);
+				} else if (slash < 0) {
+					if (!seen.contains(key)) {
+						gone.add(key);
+					}
+					key = ids.higherKey(key);
+				} else {
+					// Skip the rest of a child's subtree
+					key = ids.higherKey(key.substring(0, slash) + "/\uffff");
+				}
+			}
+			for (String child : gone) {
+				delete(child);
+				new ArrayList<>(subtree(child).keySet()).forEach(this::delete);
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		newDirs.forEach(this::sync);
+		refresh(dir);
+	}
+
+	/**
+	 * Re-reads the attributes of a single entry, a directory after its listing changed.
+	 */
+	private void refresh(Path path) {
+		String key = key(path);
+		if (key == null || excluded(key)) {
+			return;
+		}
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			List<Update> batch = new ArrayList<>();
+			visit(path, key, attributes, null, batch);
+			apply(batch);
+		} catch (IOException e) {
+			log.debug("Couldn't refresh {}", path, e);
+		}
+	}
+
+	private void visit(Path path, String key, BasicFileAttributes attributes, Set<String> seen, List<Update> batch) {
+		if (seen != null) {
+			seen.add(key);
+		}
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		lock.readLock().lock();
+		try {
+			Integer id = ids.get(key);
+			Doc doc = id == null ? null : docs.get(id);
+			if (doc != null && doc.dir() == attributes.isDirectory() && doc.size() == attributes.size()
+					&& doc.lastModified() == lastModified) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		batch.add(new Update(key, attributes.isDirectory(), attributes.size(), lastModified,
+				attributes.isRegularFile() ? readWords(path, attributes.size()) : Set.of()));
+		if (batch.size() >= BATCH_SIZE) {
+			apply(batch);
+		}
+	}
+
+	private void apply(List<Update> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			for (Update update : batch) {
+				remove(update.key());
+				add(update);
+				record(new Change(update.key(), update));
+			}
+			compactIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		batch.clear();
+	}
+
+	private void add(Update update) {
+		int id = docs.size();
+		String name = update.key().substring(update.key().lastIndexOf('/') + 1);
+		Doc doc = new Doc(update.key(), name.toLowerCase(Locale.ROOT), update.dir(), update.size(),
+				update.lastModified());
+		docs.add(doc);
+		ids.put(doc.key(), id);
+		for (long gram : grams(doc.lowerName())) {
+			grams.computeIfAbsent(gram, key -> new Postings()).add(id);
+		}
+		for (String word : update.words()) {
+			words.computeIfAbsent(word, key -> new Postings()).add(id);
+		}
+	}
+
+	private void remove(String key) {
+		Integer id = ids.remove(key);
+		if (id != null) {
+			docs.set(id, null);
+			removedDocs++;
+		}
+	}
+
+	/**
+	 * Removes an entry which is gone from the disk.
+	 */
+	private void delete(String key) {
+		if (ids.containsKey(key)) {
+			remove(key);
+			record(new Change(key, null));
+		}
+	}
+
+	private void record(Change change) {
+		if (replaying) {
+			return;
+		}
+		if (!complete) {
+			// Still being built or reconciled at start, which ends with a snapshot anyway
+			snapshotStale = true;
+			return;
+		}
+		synchronized (pendingChanges) {
+			pendingChanges.add(change);
+		}
+	}
+
+	/**
+	 * Renumbers the documents once removed ones make up half the index, dropping them from the postings.
+	 */
+	private void compactIfNeeded() {
+		if (removedDocs < 1000 || removedDocs < docs.size() / 2) {
+			return;
+		}
+		int[] newIds = new int[docs.size()];
+		ArrayList<Doc> live = new ArrayList<>(docs.size() - removedDocs);
+		for (int id = 0; id < docs.size(); id++) {
+			Doc doc = docs.get(id);
+			newIds[id] = doc == null ? -1 : live.size();
+			if (doc != null) {
+				ids.put(doc.key(), live.size());
+				live.add(doc);
+			}
+		}
+		docs.clear();
+		docs.addAll(live);
+		docs.trimToSize();
+		removedDocs = 0;
+		generation++;
+		grams.values().removeIf(postings -> {
+			postings.renumber(newIds);
+			return postings.size == 0;
+		});
+		words.values().removeIf(postings -> {
+			postings.renumber(newIds);
+			return postings.size == 0;
+		});
+	}
+
+	private boolean load() {
+		if (!Files.exists(indexFile)) {
+			return false;
+		}
+		// What is read back is already on disk, none of it needs journaling
+		replaying = true;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn("Ignoring search index {} written by another version", indexFile);
+				return false;
+			}
+			if (in.readBoolean() != indexContent) {
+				log.info("Rebuilding search index as content indexing was switched {}", indexContent ? "on" : "off");
+				return false;
+			}
+			int count = in.readInt();
+			List<Update> batch = new ArrayList<>(Math.min(count, BATCH_SIZE));
+			for (int i = 0; i < count; i++) {
+				batch.add(new Update(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(), Set.of()));
+				if (batch.size() >= BATCH_SIZE) {
+					apply(batch);
+				}
+			}
+			apply(batch);
+			int wordCount = in.readInt();
+			lock.writeLock().lock();
+			try {
+				for (int i = 0; i < wordCount; i++) {
+					String word = in.readUTF();
+					int size = in.readInt();
+					Postings postings = new Postings();
+					postings.ids = new int[Math.max(2, size)];
+					for (int j = 0; j < size; j++) {
+						postings.ids[j] = in.readInt();
+					}
+					postings.size = size;
+					words.put(word, postings);
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			replayJournal();
+			log.info("Loaded search index with {} entries and {} journaled changes", count, journalRecords);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			lock.writeLock().lock();
+			try {
+				ids.clear();
+				docs.clear();
+				grams.clear();
+				words.clear();
+				removedDocs = 0;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			log.error("Couldn't read search index {}", indexFile, e);
+			return false;
+		} finally {
+			replaying = false;
+		}
+	}
+
+	/**
+	 * Applies the journaled changes over the snapshot just loaded, up to the last complete record. Anything replayed
+	 * gets folded into a new snapshot once the index is ready.
+	 */
+	private void replayJournal() throws IOException {
+		if (!Files.exists(journalFile)) {
+			return;
+		}
+		long replayed = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Journal " + journalFile + " was written by another version");
+			}
+			List<Update> batch = new ArrayList<>();
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+				} catch (EOFException e) {
+					break;
+				}
+				String key = in.readUTF();
+				if (op == JOURNAL_REMOVE) {
+					apply(batch);
+					lock.writeLock().lock();
+					try {
+						remove(key);
+						new ArrayList<>(subtree(key).keySet()).forEach(this::remove);
+					} finally {
+						lock.writeLock().unlock();
+					}
+				} else if (op == JOURNAL_ADD) {
+					boolean dir = in.readBoolean();
+					long size = in.readLong();
+					long lastModified = in.readLong();
+					Set<String> tokens = new HashSet<>();
+					for (int i = in.readInt(); i > 0; i--) {
+						tokens.add(in.readUTF());
+					}
+					batch.add(new Update(key, dir, size, lastModified, tokens));
+					if (batch.size() >= BATCH_SIZE) {
+						apply(batch);
+					}
+				} else {
+					throw new IOException("Corrupt journal " + journalFile);
+				}
+				replayed++;
+			}
+			apply(batch);
+		} catch (EOFException e) {
+			log.warn("Search index journal {} ends in a partial record, which was dropped", journalFile);
+		}
+		journalRecords = replayed;
+		if (replayed > 0) {
+			snapshotStale = true;
+		}
+	}
+
+	private Set<String> readWords(Path file, long size) {
+		if (!indexContent || size > contentMaxBytes || !extensionService.isText(file.getFileName().toString())) {
+			return Set.of();
+		}
+		try {
+			return tokenize(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			log.debug("Couldn't read {} for indexing", file, e);
+			return Set.of();
+		}
+	}
+
+	private Set<String> tokenize(String text) {
+		Set<String> tokens = new HashSet<>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				if (i - start >= MIN_WORD && i - start <= MAX_WORD) {
+					tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+				}
+				start = -1;
+			}
+		}
+		return tokens;
+	}
+
+	private List<String> nameParts(String query) {
+		List<String> parts = new ArrayList<>();
+		for (String part : query.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+			if (!part.isEmpty()) {
+				parts.add(part);
+			}
+		}
+		return parts;
+	}
+
+	/**
+	 * Distinct trigrams of a lower case string, three chars packed into a long.
+	 */
+	private long[] grams(String text) {
+		if (text.length() < 3) {
+			return new long[0];
+		}
+		long[] result = new long[text.length() - 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+		}
+		Arrays.sort(result);
+		int distinct = 0;
+		for (int i = 0; i < result.length; i++) {
+			if (i == 0 || result[i] != result[i - 1]) {
+				result[distinct++] = result[i];
+			}
+		}
+		return Arrays.copyOf(result, distinct);
+	}
+
+	private boolean inAll(List<Postings> lists, int id) {
+		for (int i = 1; i < lists.size(); i++) {
+			if (!lists.get(i).contains(id)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matches(Doc doc, String prefix, List<String> parts, boolean content) {
+		if (doc == null || doc.key().isEmpty() || !doc.key().startsWith(prefix)) {
+			return false;
+		}
+		if (!content) {
+			for (String part : parts) {
+				if (!doc.lowerName().contains(part)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private SearchResult result(Doc doc) {
+		SearchResult result = new SearchResult();
+		result.setPath("/" + doc.key());
+		result.setName(doc.key().substring(doc.key().lastIndexOf('/') + 1));
+		result.setDir(doc.dir());
+		result.setSizeInBytes(doc.dir() ? 0 : doc.size());
+		result.setLastModified(doc.lastModified());
+		return result;
+	}
+
+	private SortedMap<String, Integer> subtree(String key) {
+		return key.isEmpty() ? ids.tailMap("", true) : ids.subMap(key + "/", key + "0");
+	}
+
+	/**
+	 * VueDisk's own files: thumbnails and everything under {@code .cache}.
+	 */
+	private boolean excluded(String key) {
+		int slash = key.indexOf('/');
+		String first = slash < 0 ? key : key.substring(0, slash);
+		return first.equals(".cache") || first.startsWith(".thumbnails-");
+	}
+
+	private Path resolve(String key) {
+		return key.isEmpty() ? root : root.resolve(key.replace('/', File.separatorChar));
+	}
+
+	private String key(Path path) {
+		Path normalized = path.toAbsolutePath().normalize();
+		if (!normalized.startsWith(root)) {
+			return null;
+		}
+		return root.relativize(normalized).toString().replace(File.separatorChar, '/');
+	}
+
+}
@@ -0,0 +1,199 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers the total size of every directory {@link SizeService} has walked, stamped with the directory mtime
+ * at the time it was read. A stamp only proves that the directory's own entries are unchanged, so any change made
+ * through VueDisk drops the changed subtree and all of its ancestors; the next size query then re-walks just that
+ * path and picks up the untouched siblings from the index. Changes made behind VueDisk's back are found by the
+ * reconciler, which compares every stamp with the directory on disk.
+ * <p>
+ * A file that is rewritten or grown in place behind VueDisk's back doesn't touch its directory's mtime, so neither
+ * the lookup nor the reconciler notices it; the old size is served until the directory itself changes or something
+ * in it is changed through VueDisk. Catching those would mean stamping and re-reading every file, which is the walk
+ * the index exists to avoid.
+ * <p>
+ * The index is kept at {@code .cache/vuedisk/size-index.dat} and written back whenever it has changed.
+ */
+@Service
+@Log4j2
+public class SizeIndexService {
+
+	private static final int MAGIC = 0x56445349;
+
+	private static final int VERSION = 1;
+
+	@Autowired
+	private ListingCacheService listingCache;
+
+	@Value("${base.dir}")
+	private String baseDir;
+
+	private Path root;
+
+	private Path indexFile;
+
+	/**
+	 * Keyed by path relative to the base directory, '/' separated, so that a subtree is a contiguous key range.
+	 */
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+	private final AtomicBoolean dirty = new AtomicBoolean();
+
+	public record Entry(long bytes, long items, long lastModified) {
+	}
+
+	@PostConstruct
+	public void init() {
+		root = Paths.get(baseDir).toAbsolutePath().normalize();
+		indexFile = root.resolve(".cache").resolve("vuedisk").resolve("size-index.dat");
+		load();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		flush();
+	}
+
+	/**
+	 * Returns the indexed totals of the directory if it hasn't changed since they were recorded.
+	 */
+	public Entry lookup(Path dir, long lastModified) {
+		String key = key(dir);
+		if (key == null) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		return entry != null && entry.lastModified() == lastModified ? entry : null;
+	}
+
+	public void record(Path dir, long lastModified, long bytes, long items) {
+		String key = key(dir);
+		if (key == null) {
+			return;
+		}
+		Entry old = entries.put(key, new Entry(bytes, items, lastModified));
+		dirty.set(true);
+		if ((old == null || old.bytes() != bytes) && dir.getParent() != null) {
+			// The parent listing shows this directory's size
+			listingCache.invalidate(dir.getParent());
+		}
+	}
+
+	public void invalidate(Path path) {
+		String key = key(path);
+		if (key == null) {
+			return;
+		}
+		if (key.isEmpty()) {
+			entries.clear();
+		} else {
+			entries.remove(key);
+			entries.subMap(key + "/", key + "0").clear();
+			for (int i = key.lastIndexOf('/'); i > 0; i = key.lastIndexOf('/', i - 1)) {
+				entries.remove(key.substring(0, i));
+			}
+			entries.remove("");
+		}
+		dirty.set(true);
+	}
+
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		event.getPaths().forEach(this::invalidate);
+	}
+
+	@Scheduled(initialDelayString = "${vuedisk.size-index.reconcile-interval-ms}",
+			fixedDelayString = "${vuedisk.size-index.reconcile-interval-ms}")
+	public void reconcile() {
+		int stale = 0;
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Path dir = root.resolve(entry.getKey());
+			long lastModified;
+			try {
+				lastModified = Files.getLastModifiedTime(dir).toMillis();
+			} catch (IOException e) {
+				lastModified = -1;
+			}
+			if (lastModified != entry.getValue().lastModified()) {
+				invalidate(dir);
+				stale++;
+			}
+		}
+		if (stale > 0) {
+			log.info("Dropped {} stale directory sizes", stale);
+		}
+		flush();
+	}
+
+	@Scheduled(fixedDelayString = "${vuedisk.size-index.flush-interval-ms}")
+	public void flush() {
+		if (!dirty.getAndSet(false)) {
+			return;
+		}
+		try {
+			Files.createDirectories(indexFile.getParent());
+			Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				Map<String, Entry> snapshot = Map.copyOf(entries);
+				out.writeInt(snapshot.size());
+				for (Map.Entry<String, Entry> entry : snapshot.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeLong(entry.getValue().bytes());
+					out.writeLong(entry.getValue().items());
+					out.writeLong(entry.getValue().lastModified());
+				}
+			}
+			Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			dirty.set(true);
+			log.error("Couldn't write size index {}", indexFile, e);
+		}
+	}
+
+	private void load() {
+		if (!Files.exists(indexFile)) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				log.warn("Ignoring size index {} written by another version", indexFile);
+				return;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				entries.put(in.readUTF(), new Entry(in.readLong(), in.readLong(), in.readLong()));
+			}
+			log.info("Loaded {} directory sizes", count);
+		} catch (IOException e) {
+			entries.clear();
+			log.error("Couldn't read size index {}", indexFile, e);
+		}
+	}
+
+	private String key(Path path) {
+		Path normalized = path.toAbsolutePath().normalize();
+		if (!normalized.startsWith(root)) {
+			return null;
+		}
+		return root.relativize(normalized).toString().replace(File.separatorChar, '/');
+	}
+
+}
@@ -0,0 +1,309 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Calculates directory sizes on a work-stealing pool, one task per directory. Every task adds its own files to the
+ * shared {@link JobProgress} counters as soon as it has read them, so progress is visible while big subtrees are still
+ * being walked.
+ * <p>
+ * Hard linked files and symlink targets are counted once: their file keys (device + inode) are remembered and any
+ * later path to the same file is skipped. Directories are always deduplicated, which also stops symlink loops. When
+ * symlinks are followed every regular file is remembered, since any of them may be the target of a link walked later.
+ * <p>
+ * Subtrees holding hard links or followed symlinks are never served from or written to the size index, as their
+ * totals depend on what else the selection contains. A symlink may still point into an indexed subtree, so the
+ * resolved targets and the subtrees served from the index are checked against each other.
+ */
+@Service
+@Log4j2
+public class SizeService {
+
+	private static final boolean UNIX_VIEW = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+	@Autowired
+	private FileService fileService;
+
+	@Autowired
+	private SizeIndexService sizeIndex;
+
+	@Value("${vuedisk.size.parallelism}")
+	private int parallelism;
+
+	@Value("${vuedisk.size.follow-symlinks}")
+	private boolean followSymlinks;
+
+	private ForkJoinPool pool;
+
+	@PostConstruct
+	public void init() {
+		pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+	}
+
+	@PreDestroy
+	public void destroy() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Adds the size of the selected entries to the progress counters, returning once the whole selection has been
+	 * walked or the progress was stopped.
+	 */
+	public void size(JobProgress progress, File sourceDir, List<String> files) {
+		if (!sourceDir.exists()) {
+			return;
+		}
+		List<Path> roots = fileService.parsePaths(sourceDir, files).stream().map(File::toPath).toList();
+		pool.invoke(new DirectoryTask(null, null, roots, true, new Context(progress)));
+	}
+
+	private Attributes read(Path path, LinkOption... options) throws IOException {
+		if (UNIX_VIEW) {
+			Map<String, Object> map = Files.readAttributes(path,
+					"unix:size,nlink,fileKey,isDirectory,isSymbolicLink,lastModifiedTime", options);
+			return new Attributes((Long) map.get("size"), (Integer) map.get("nlink"), map.get("fileKey"),
+					(Boolean) map.get("isDirectory"), (Boolean) map.get("isSymbolicLink"),
+					((FileTime) map.get("lastModifiedTime")).toMillis(), false);
+		}
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+		return new Attributes(attributes.size(), 1, attributes.fileKey(), attributes.isDirectory(),
+				attributes.isSymbolicLink(), attributes.lastModifiedTime().toMillis(), false);
+	}
+
+	/**
+	 * @param linked whether these are the attributes of a symlink's target, read through the link
+	 */
+	private record Attributes(long size, int links, Object fileKey, boolean directory, boolean symbolicLink,
+							  long lastModified, boolean linked) {
+
+		Attributes asLinked() {
+			return new Attributes(size, links, fileKey, directory, symbolicLink, lastModified, true);
+		}
+
+	}
+
+	private static final Attributes DUPLICATE = new Attributes(0, 0, null, false, false, 0, false);
+
+	private static final class Context {
+
+		private final JobProgress progress;
+
+		private final Set<Object> seen = ConcurrentHashMap.newKeySet();
+
+		/**
+		 * Real paths of the resolved symlink targets and of the subtrees served from the index.
+		 */
+		private final NavigableSet<String> linkTargets = new TreeSet<>();
+
+		private final Set<String> indexed = new HashSet<>();
+
+		Context(JobProgress progress) {
+			this.progress = progress;
+		}
+
+		/**
+		 * Returns false if the target lies in a subtree whose indexed total already counted it.
+		 */
+		synchronized boolean claimLinkTarget(Path target) {
+			for (Path path = target; path != null; path = path.getParent()) {
+				if (indexed.contains(path.toString())) {
+					return false;
+				}
+			}
+			linkTargets.add(target.toString());
+			return true;
+		}
+
+		/**
+		 * Returns false if a link target was already counted inside the directory, so its indexed total can't be used.
+		 */
+		synchronized boolean claimIndexed(Path dir) {
+			String key = dir.toString();
+			String prefix = key + File.separator;
+			String below = linkTargets.ceiling(prefix);
+			if (linkTargets.contains(key) || below != null && below.startsWith(prefix)) {
+				return false;
+			}
+			indexed.add(key);
+			return true;
+		}
+
+	}
+
+	/**
+	 * Bytes and items of a subtree, the directory itself included. A subtree is complete unless the walk was
+	 * stopped, some directory in it couldn't be listed, some entry was deduplicated against another subtree or it
+	 * holds entries reachable through other paths; only complete totals go into the index.
+	 */
+	record Totals(long bytes, long items, boolean complete) {
+
+		static final Totals EMPTY = new Totals(0, 0, true);
+
+		Totals plus(Totals other) {
+			return new Totals(bytes + other.bytes, items + other.items, complete && other.complete);
+		}
+
+	}
+
+	private class DirectoryTask extends RecursiveTask<Totals> {
+
+		private final Path dir;
+
+		private final Attributes attributes;
+
+		private final List<Path> children;
+
+		private final boolean indexable;
+
+		private final Context context;
+
+		/**
+		 * @param dir        directory this task accounts for, {@code null} for the synthetic root of a selection
+		 * @param attributes attributes of {@code dir}, read before it is listed
+		 * @param children   entries to visit, {@code null} to read them from {@code dir}
+		 * @param indexable  false below a followed symlink, where paths don't name the directories they show
+		 */
+		DirectoryTask(Path dir, Attributes attributes, List<Path> children, boolean indexable, Context context) {
+			this.dir = dir;
+			this.attributes = attributes;
+			this.children = children;
+			this.indexable = indexable;
+			this.context = context;
+		}
+
+		@Override
+		protected Totals compute() {
+			JobProgress progress = context.progress;
+			if (dir != null && indexable) {
+				SizeIndexService.Entry indexed = sizeIndex.lookup(dir, attributes.lastModified());
+				if (indexed != null && claimIndexed()) {
+					progress.addBytes(indexed.bytes());
+					progress.addItems(indexed.items());
+					return new Totals(indexed.bytes(), indexed.items(), true);
+				}
+			}
+			if (progress.isStopped()) {
+				return new Totals(0, dir == null ? 0 : 1, false);
+			}
+			Totals totals = dir == null ? Totals.EMPTY : new Totals(0, 1, true);
+			boolean exact = true;
+			List<DirectoryTask> forks = new ArrayList<>();
+			long bytes = 0;
+			long items = 0;
+			try {
+				for (Path child : children != null ? children : list(dir)) {
+					if (progress.isStopped()) {
+						break;
+					}
+					Attributes childAttributes = attributes(child);
+					if (childAttributes == DUPLICATE) {
+						// Counted under another path, so this subtree's totals don't stand on their own
+						exact = false;
+						continue;
+					} else if (childAttributes == null) {
+						continue;
+					}
+					if (childAttributes.linked() || childAttributes.links() > 1) {
+						// Also reachable through other paths, which an indexed total couldn't account for
+						exact = false;
+					}
+					if (childAttributes.directory()) {
+						DirectoryTask task = new DirectoryTask(child, childAttributes, null,
+								indexable && !childAttributes.linked(), context);
+						task.fork();
+						forks.add(task);
+					} else {
+						bytes += childAttributes.size();
+						items++;
+					}
+				}
+			} catch (IOException e) {
+				exact = false;
+				log.warn("Couldn't list dir {}", dir, e);
+			}
+			// Publish this directory's own files before waiting for the subtrees
+			progress.addBytes(bytes);
+			progress.addItems(items + totals.items());
+			totals = totals.plus(new Totals(bytes, items, exact && !progress.isStopped()));
+			for (DirectoryTask task : forks) {
+				totals = totals.plus(task.join());
+			}
+			// A subtree stopped after this directory was listed still reports itself complete, so check again
+			if (dir != null && indexable && totals.complete() && !progress.isStopped()) {
+				sizeIndex.record(dir, attributes.lastModified(), totals.bytes(), totals.items());
+			}
+			return totals;
+		}
+
+		/**
+		 * Marks this directory as counted from the index, unless symlinks are followed and one of them already
+		 * resolved to something inside it.
+		 */
+		private boolean claimIndexed() {
+			if (!followSymlinks) {
+				return true;
+			}
+			try {
+				return context.claimIndexed(dir.toRealPath());
+			} catch (IOException e) {
+				log.debug("Couldn't resolve {}", dir, e);
+				return false;
+			}
+		}
+
+		private List<Path> list(Path dir) throws IOException {
+			List<Path> list = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				stream.forEach(list::add);
+			}
+			return list;
+		}
+
+		/**
+		 * Reads the entry, resolving symlinks when configured to. Returns {@code null} for entries which vanished and
+		 * {@link #DUPLICATE} for ones already counted through another path.
+		 */
+		private Attributes attributes(Path path) {
+			try {
+				Attributes attributes = read(path, LinkOption.NOFOLLOW_LINKS);
+				if (attributes.symbolicLink() && followSymlinks) {
+					try {
+						attributes = read(path).asLinked();
+						if (!context.claimLinkTarget(path.toRealPath())) {
+							return DUPLICATE;
+						}
+					} catch (IOException e) {
+						// Dangling link, count the link itself
+						log.debug("Couldn't resolve link {}", path, e);
+					}
+				}
+				boolean dedup = attributes.directory() || followSymlinks || attributes.links() > 1;
+				if (dedup && attributes.fileKey() != null && !context.seen.add(attributes.fileKey())) {
+					return DUPLICATE;
+				}
+				return attributes;
+			} catch (IOException e) {
+				log.debug("Couldn't read {}", path, e);
+				return null;
+			}
+		}
+
+	}
+
+}
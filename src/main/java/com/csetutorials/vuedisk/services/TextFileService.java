@@ -0,0 +1,456 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import com.csetutorials.vuedisk.beans.TextEdit;
+import com.csetutorials.vuedisk.beans.TextPatch;
+import com.csetutorials.vuedisk.beans.TextWindow;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Reads and edits text files of any size a window at a time. Files are memory mapped, so reading a window costs
+ * its own size and no heap besides the decoded text, and lines are found through an index keeping the offset of
+ * every {@code vuedisk.text.line-index-interval}-th line. The index of a file which only grew, such as a log, is
+ * extended over the new bytes rather than rebuilt, one that was replaced or rewritten is rebuilt.
+ * <p>
+ * Edits are byte ranges of the windows handed out, written to a copy of the file which then atomically replaces it.
+ */
+@Service
+@Log4j2
+public class TextFileService {
+
+	private static final int MAP_CHUNK = 64 * 1024 * 1024;
+
+	/**
+	 * Bytes kept from the start and the end of the indexed part of a file, to tell an append from a rewrite.
+	 */
+	private static final int FINGERPRINT_BYTES = 64;
+
+	@Autowired
+	private FileService fileService;
+
+	@Value("${vuedisk.text.line-index-interval}")
+	private int indexInterval;
+
+	@Value("${vuedisk.text.max-window-bytes}")
+	private int maxWindowBytes;
+
+	@Value("${vuedisk.text.index-cache-size}")
+	private int indexCacheSize;
+
+	private Map<Path, LineIndex> indexes;
+
+	private final Object writeLock = new Object();
+
+	@PostConstruct
+	public void init() {
+		indexes = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, LineIndex> eldest) {
+				return size() > indexCacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Offsets of every {@code indexInterval}-th line start of a file, as far as it has been scanned.
+	 */
+	private final class LineIndex {
+
+		private long size;
+
+		private long lastModified;
+
+		private long[] checkpoints = {0};
+
+		private int checkpointCount = 1;
+
+		private long newlines;
+
+		private long lastLineStart;
+
+		private Object fileKey;
+
+		private byte[] head = new byte[0];
+
+		private byte[] tail = new byte[0];
+
+		void scan(FileChannel channel, long to) throws IOException {
+			for (long position = size; position < to; ) {
+				int length = (int) Math.min(MAP_CHUNK, to - position);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+				for (int i = 0; i < length; i++) {
+					if (buffer.get(i) == '\n') {
+						newlines++;
+						lastLineStart = position + i + 1;
+						if (newlines % indexInterval == 0) {
+							if (checkpointCount == checkpoints.length) {
+								checkpoints = Arrays.copyOf(checkpoints, checkpointCount * 2);
+							}
+							checkpoints[checkpointCount++] = lastLineStart;
+						}
+					}
+				}
+				position += length;
+			}
+			size = to;
+			if (head.length < FINGERPRINT_BYTES) {
+				head = read(channel, 0, (int) Math.min(FINGERPRINT_BYTES, size));
+			}
+			int tailLength = (int) Math.min(FINGERPRINT_BYTES, size);
+			tail = read(channel, size - tailLength, tailLength);
+		}
+
+		/**
+		 * Whether the bytes indexed so far are still there, that is whether the file only grew since.
+		 */
+		boolean unchanged(FileChannel channel) throws IOException {
+			return Arrays.equals(head, read(channel, 0, head.length))
+					&& Arrays.equals(tail, read(channel, size - tail.length, tail.length));
+		}
+
+		long totalLines() {
+			return newlines + (size > lastLineStart ? 1 : 0);
+		}
+
+		long lineStart(FileChannel channel, long line) throws IOException {
+			if (line >= totalLines()) {
+				return size;
+			}
+			int checkpoint = (int) Math.min(line / indexInterval, checkpointCount - 1);
+			long remaining = line - (long) checkpoint * indexInterval;
+			return remaining == 0 ? checkpoints[checkpoint] : skipLines(channel, checkpoints[checkpoint], remaining, size);
+		}
+
+		long lineOf(FileChannel channel, long offset) throws IOException {
+			int checkpoint = Arrays.binarySearch(checkpoints, 0, checkpointCount, offset);
+			if (checkpoint < 0) {
+				checkpoint = -checkpoint - 2;
+			}
+			return (long) checkpoint * indexInterval + countNewlines(channel, checkpoints[checkpoint], offset);
+		}
+
+	}
+
+	/**
+	 * {@code count} lines starting with line {@code from}, counted from 0.
+	 */
+	public TextWindow lines(File file, long from, int count, String charsetName) throws IOException {
+		if (from < 0 || count < 1) {
+			throw new IllegalArgumentException("from must not be negative and count must be positive");
+		}
+		Charset charset = charset(charsetName);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			LineIndex index = index(file.toPath(), channel);
+			synchronized (index) {
+				long start = index.lineStart(channel, from);
+				long end = index.lineStart(channel, from + count);
+				return window(channel, index, start, Math.min(end, start + maxWindowBytes), charset);
+			}
+		}
+	}
+
+	/**
+	 * The whole lines within {@code length} bytes from the first line starting at or after {@code offset}.
+	 */
+	public TextWindow window(File file, long offset, int length, String charsetName) throws IOException {
+		if (offset < 0 || length < 1) {
+			throw new IllegalArgumentException("offset must not be negative and length must be positive");
+		}
+		Charset charset = charset(charsetName);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			LineIndex index = index(file.toPath(), channel);
+			synchronized (index) {
+				long start = offset == 0 ? 0 : lineStartAtOrAfter(channel, Math.min(offset, index.size), index.size);
+				long end = Math.min(index.size, start + Math.min(length, maxWindowBytes));
+				return window(channel, index, start, end, charset);
+			}
+		}
+	}
+
+	/**
+	 * The last {@code lines} lines or, to follow a growing file, the complete lines written after {@code since},
+	 * which is the {@code endOffset} of the previous call.
+	 */
+	public TextWindow tail(File file, int lines, Long since, String charsetName) throws IOException {
+		if (lines < 1) {
+			throw new IllegalArgumentException("lines must be positive");
+		}
+		Charset charset = charset(charsetName);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			LineIndex index = index(file.toPath(), channel);
+			synchronized (index) {
+				if (since != null) {
+					boolean reset = since > index.size;
+					long start = reset ? 0 : Math.max(0, since);
+					// The last line may still be being written, leave it for the next call
+					long end = lastLineEnd(channel, start, Math.min(index.size, start + maxWindowBytes));
+					TextWindow window = window(channel, index, start, end < 0 ? start : end, charset);
+					window.setReset(reset);
+					return window;
+				}
+				long start = index.lineStart(channel, Math.max(0, index.totalLines() - lines));
+				if (index.size - start > maxWindowBytes) {
+					start = lineStartAtOrAfter(channel, index.size - maxWindowBytes, index.size);
+				}
+				return window(channel, index, start, index.size, charset);
+			}
+		}
+	}
+
+	/**
+	 * Applies non overlapping edits, and returns the new size and mtime to make the next patch against.
+	 *
+	 * @throws IllegalStateException if the file no longer has the expected size or mtime
+	 */
+	public Map<String, Object> patch(File file, TextPatch patch) throws IOException {
+		Charset charset = charset(patch.getCharset());
+		List<TextEdit> edits = new ArrayList<>(patch.getEdits() == null ? List.of() : patch.getEdits());
+		edits.sort(Comparator.comparingLong(TextEdit::getOffset));
+		Path path = file.toPath();
+		synchronized (writeLock) {
+			try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = source.size();
+				long lastModified = Files.getLastModifiedTime(path).toMillis();
+				if ((patch.getExpectedSize() != null && patch.getExpectedSize() != size)
+						|| (patch.getExpectedLastModified() != null && patch.getExpectedLastModified() != lastModified)) {
+					throw new IllegalStateException(file.getName() + " changed since it was read");
+				}
+				long previousEnd = 0;
+				for (TextEdit edit : edits) {
+					if (edit.getOffset() < previousEnd || edit.getLength() < 0
+							|| edit.getOffset() + edit.getLength() > size) {
+						throw new IllegalArgumentException("Edits must be within the file and must not overlap");
+					}
+					previousEnd = edit.getOffset() + edit.getLength();
+				}
+				fileService.writeAtomically(file, target -> {
+					long position = 0;
+					for (TextEdit edit : edits) {
+						transfer(source, position, edit.getOffset() - position, target);
+						ByteBuffer text = charset.encode(edit.getText() == null ? "" : edit.getText());
+						while (text.hasRemaining()) {
+							target.write(text);
+						}
+						position = edit.getOffset() + edit.getLength();
+					}
+					transfer(source, position, size - position, target);
+				});
+			}
+			synchronized (indexes) {
+				indexes.remove(path);
+			}
+		}
+		fileService.notifyChanged(file);
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("sizeInBytes", Files.size(path));
+		map.put("lastModified", Files.getLastModifiedTime(path).toMillis());
+		map.put("size", fileService.getSizeInString(Files.size(path)));
+		return map;
+	}
+
+	/**
+	 * Drops the indexes of files VueDisk changed, below a changed directory too.
+	 */
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		synchronized (indexes) {
+			for (Path changed : event.getPaths()) {
+				Path normalized = changed.toAbsolutePath().normalize();
+				indexes.keySet().removeIf(path -> path.toAbsolutePath().normalize().startsWith(normalized));
+			}
+		}
+	}
+
+	/**
+	 * The file's line index, extended over anything appended since it was last used, or rebuilt if the file was
+	 * replaced or rewritten. A file counts as appended to only if it is the same file and the start and end of
+	 * what was indexed are unchanged.
+	 */
+	private LineIndex index(Path path, FileChannel channel) throws IOException {
+		long size = channel.size();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		LineIndex index;
+		synchronized (indexes) {
+			index = indexes.get(path);
+		}
+		if (index != null) {
+			synchronized (index) {
+				if (!Objects.equals(index.fileKey, attributes.fileKey()) || size < index.size
+						|| (size == index.size && lastModified != index.lastModified)
+						|| (size > index.size && !index.unchanged(channel))) {
+					index = null;
+				}
+			}
+		}
+		if (index == null) {
+			index = new LineIndex();
+			index.fileKey = attributes.fileKey();
+			synchronized (indexes) {
+				indexes.put(path, index);
+			}
+		}
+		synchronized (index) {
+			if (index.size < size) {
+				index.scan(channel, size);
+			}
+			index.lastModified = lastModified;
+		}
+		return index;
+	}
+
+	/**
+	 * Decodes {@code [start, end)}, cut back to the last line end in it unless it reaches the end of the file or
+	 * is a single overlong line.
+	 */
+	private TextWindow window(FileChannel channel, LineIndex index, long start, long end, Charset charset)
+			throws IOException {
+		if (end < index.size && end > start) {
+			long lineEnd = lastLineEnd(channel, start, end);
+			if (lineEnd > start) {
+				end = lineEnd;
+			}
+		}
+		TextWindow window = new TextWindow();
+		window.setStartOffset(start);
+		window.setEndOffset(end);
+		window.setStartLine(index.lineOf(channel, start));
+		window.setTotalLines(index.totalLines());
+		window.setSizeInBytes(index.size);
+		window.setLastModified(index.lastModified);
+		if (end == start) {
+			window.setContent("");
+			return window;
+		}
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		long newlines = 0;
+		for (int i = 0; i < bytes.limit(); i++) {
+			if (bytes.get(i) == '\n') {
+				newlines++;
+			}
+		}
+		window.setLineCount(newlines + (bytes.get(bytes.limit() - 1) == '\n' ? 0 : 1));
+		CharsetDecoder decoder = charset.newDecoder();
+		CharBuffer content;
+		try {
+			content = decoder.onMalformedInput(CodingErrorAction.REPORT)
+					.onUnmappableCharacter(CodingErrorAction.REPORT).decode(bytes.duplicate());
+		} catch (CharacterCodingException e) {
+			window.setLossy(true);
+			content = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE).decode(bytes.duplicate());
+		}
+		window.setContent(content.toString());
+		return window;
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+	}
+
+	private long skipLines(FileChannel channel, long from, long lines, long limit) throws IOException {
+		for (long position = from; position < limit; ) {
+			int length = (int) Math.min(MAP_CHUNK, limit - position);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			for (int i = 0; i < length; i++) {
+				if (buffer.get(i) == '\n' && --lines == 0) {
+					return position + i + 1;
+				}
+			}
+			position += length;
+		}
+		return limit;
+	}
+
+	private long countNewlines(FileChannel channel, long from, long to) throws IOException {
+		long newlines = 0;
+		for (long position = from; position < to; ) {
+			int length = (int) Math.min(MAP_CHUNK, to - position);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			for (int i = 0; i < length; i++) {
+				if (buffer.get(i) == '\n') {
+					newlines++;
+				}
+			}
+			position += length;
+		}
+		return newlines;
+	}
+
+	private long lineStartAtOrAfter(FileChannel channel, long offset, long limit) throws IOException {
+		if (offset == 0 || offset >= limit) {
+			return offset;
+		}
+		return skipLines(channel, offset - 1, 1, limit);
+	}
+
+	/**
+	 * The offset just past the last newline in {@code [from, to)}, or -1 if there is none.
+	 */
+	private long lastLineEnd(FileChannel channel, long from, long to) throws IOException {
+		if (to <= from) {
+			return -1;
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+		for (int i = buffer.limit() - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n') {
+				return from + i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private void transfer(FileChannel source, long position, long count, FileChannel target) throws IOException {
+		while (count > 0) {
+			long transferred = source.transferTo(position, count, target);
+			if (transferred <= 0) {
+				// The file shrank underneath, looping on would spin while holding the write lock
+				throw new IOException("File ended " + count + " bytes early at " + position);
+			}
+			position += transferred;
+			count -= transferred;
+		}
+	}
+
+	/**
+	 * Lines are found by their newline byte, so only charsets where it is a single byte, such as UTF-8 and the
+	 * ISO-8859 family, are supported.
+	 */
+	private Charset charset(String name) {
+		Charset charset = name == null || name.isBlank() ? StandardCharsets.UTF_8 : Charset.forName(name);
+		ByteBuffer newline = charset.encode("\n");
+		if (newline.remaining() != 1 || newline.get(0) != '\n') {
+			throw new IllegalArgumentException("Unsupported charset " + name);
+		}
+		return charset;
+	}
+
+}
@@ -0,0 +1,379 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps track of the thumbnails on disk. A thumbnail is named after its image plus the image's mtime and size,
+ * {@code .thumbnails-height-<h>/<path>.<mtime>-<size>}, so an edited or replaced image never matches its old
+ * thumbnail. Thumbnails of files VueDisk renames, moves or deletes are removed along with them, and the least
+ * recently used ones are deleted whenever all of them together take more than
+ * {@code vuedisk.thumbnails.cache-size-mb}.
+ * <p>
+ * Which thumbnails exist is read from disk in the background at startup. Until that is done, thumbnails not yet
+ * seen are looked up on disk directly.
+ */
+@Service
+@Log4j2
+public class ThumbnailCacheService {
+
+	private static final String DIR_PREFIX = ".thumbnails-height-";
+
+	private static final Pattern STAMPED = Pattern.compile("(.+)\\.[0-9a-f]+-[0-9a-f]+");
+
+	@Value("${base.dir}")
+	private String baseDir;
+
+	@Value("${vuedisk.thumbnails.cache-size-mb}")
+	private long cacheSizeMb;
+
+	private Path root;
+
+	private long maxBytes;
+
+	private long startedAt;
+
+	/**
+	 * Keyed by the thumbnail path without its stamp, so there is one entry per image and size.
+	 */
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long cachedBytes;
+
+	private volatile boolean loaded;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	private final LongAdder evictedBytes = new LongAdder();
+
+	private final LongAdder invalidations = new LongAdder();
+
+	private record Entry(Path file, long size) {
+	}
+
+	@PostConstruct
+	public void init() {
+		root = Paths.get(baseDir).toAbsolutePath().normalize();
+		maxBytes = cacheSizeMb * 1024 * 1024;
+		startedAt = System.currentTimeMillis();
+		Thread.ofVirtual().name("thumbnail-cache-loader").start(this::load);
+	}
+
+	/**
+	 * Where the thumbnail of the file at the given height is, or would be, kept.
+	 */
+	public Path path(File file, int height) throws IOException {
+		Path source = file.toPath().toAbsolutePath().normalize();
+		Path base = root.resolve(DIR_PREFIX + height).resolve(root.relativize(source));
+		return base.resolveSibling(base.getFileName() + stamp(source));
+	}
+
+	/**
+	 * Whether the thumbnail exists, counting it as used if it does.
+	 */
+	public boolean contains(Path thumbnail) {
+		Path base = base(thumbnail);
+		synchronized (entries) {
+			Entry entry = entries.get(base);
+			if (entry != null && entry.file().equals(thumbnail)) {
+				hits.increment();
+				return true;
+			}
+		}
+		if (!loaded && Files.exists(thumbnail, LinkOption.NOFOLLOW_LINKS)) {
+			hits.increment();
+			added(thumbnail);
+			return true;
+		}
+		misses.increment();
+		return false;
+	}
+
+	/**
+	 * Records a thumbnail which was just written, deleting the one it replaces and, if the cache is now over its
+	 * budget, the least recently used others.
+	 */
+	public void added(Path thumbnail) {
+		long size = size(thumbnail);
+		List<Path> delete = new ArrayList<>();
+		synchronized (entries) {
+			Entry old = entries.put(base(thumbnail), new Entry(thumbnail, size));
+			cachedBytes += size;
+			if (old != null) {
+				cachedBytes -= old.size();
+				if (!old.file().equals(thumbnail)) {
+					delete.add(old.file());
+				}
+			}
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (cachedBytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+				Entry eldest = iterator.next();
+				iterator.remove();
+				cachedBytes -= eldest.size();
+				evictions.increment();
+				evictedBytes.add(eldest.size());
+				delete.add(eldest.file());
+			}
+		}
+		delete.forEach(this::delete);
+	}
+
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		for (Path path : event.getPaths()) {
+			Path source = path.toAbsolutePath().normalize();
+			if (!source.startsWith(root) || source.equals(root) || isThumbnail(source)) {
+				continue;
+			}
+			Path relative = root.relativize(source);
+			for (Path dir : thumbnailDirs()) {
+				invalidate(dir.resolve(relative));
+			}
+		}
+	}
+
+	public boolean isThumbnail(Path path) {
+		Path relative = root.relativize(path.toAbsolutePath().normalize());
+		return relative.getNameCount() > 0 && relative.getName(0).toString().startsWith(DIR_PREFIX);
+	}
+
+	public Map<String, Object> getStats() {
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("loaded", loaded);
+		synchronized (entries) {
+			map.put("thumbnails", entries.size());
+			map.put("cachedBytes", cachedBytes);
+		}
+		map.put("maxBytes", maxBytes);
+		map.put("hits", hitCount);
+		map.put("misses", missCount);
+		map.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		map.put("evictions", evictions.sum());
+		map.put("evictedBytes", evictedBytes.sum());
+		map.put("invalidations", invalidations.sum());
+		return map;
+	}
+
+	/**
+	 * Drops the thumbnails below a changed path whose image is gone or no longer matches them. Thumbnails of
+	 * images which weren't touched are kept, as a change to a directory is also reported for every file copied or
+	 * uploaded into it.
+	 */
+	private void invalidate(Path base) {
+		List<Map.Entry<Path, Entry>> candidates = new ArrayList<>();
+		synchronized (entries) {
+			for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+				if (entry.getKey().startsWith(base)) {
+					candidates.add(Map.entry(entry.getKey(), entry.getValue()));
+				}
+			}
+		}
+		List<Path> delete = new ArrayList<>();
+		for (Map.Entry<Path, Entry> candidate : candidates) {
+			if (stale(candidate.getValue().file())) {
+				synchronized (entries) {
+					if (entries.remove(candidate.getKey(), candidate.getValue())) {
+						cachedBytes -= candidate.getValue().size();
+						delete.add(candidate.getValue().file());
+					}
+				}
+			}
+		}
+		if (!loaded) {
+			// Not indexed yet, so look for them on disk
+			onDisk(base).stream().filter(this::stale).forEach(delete::add);
+		}
+		invalidations.add(delete.size());
+		delete.forEach(this::delete);
+		if (Files.isDirectory(base, LinkOption.NOFOLLOW_LINKS) && !Files.exists(source(base))) {
+			deleteTree(base);
+		}
+	}
+
+	/**
+	 * The image a thumbnail path without its stamp belongs to.
+	 */
+	private Path source(Path base) {
+		Path relative = root.relativize(base);
+		return root.resolve(relative.subpath(1, relative.getNameCount()));
+	}
+
+	private boolean stale(Path thumbnail) {
+		Path base = base(thumbnail);
+		try {
+			return !thumbnail.getFileName().toString().equals(base.getFileName() + stamp(source(base)));
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private String stamp(Path source) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		return "." + Long.toHexString(attributes.lastModifiedTime().toMillis()) + "-" + Long.toHexString(attributes.size());
+	}
+
+	private List<Path> onDisk(Path base) {
+		List<Path> found = new ArrayList<>();
+		Path dir = base.getParent();
+		if (dir == null || !Files.isDirectory(dir)) {
+			return found;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (base(path).equals(base)) {
+					found.add(path);
+				}
+			}
+		} catch (IOException e) {
+			log.debug("Couldn't list {}", dir, e);
+		}
+		return found;
+	}
+
+	/**
+	 * Indexes the thumbnails already on disk, least recently written first, and clears out what isn't a current
+	 * thumbnail: files from before thumbnails were stamped and temporary files left by a crash.
+	 */
+	private void load() {
+		record Found(Path file, long size, long lastModified) {
+		}
+		List<Found> found = new ArrayList<>();
+		for (Path dir : thumbnailDirs()) {
+			try {
+				Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+						String name = file.getFileName().toString();
+						if (name.endsWith(".tmp")) {
+							// Unless it is being written right now
+							if (attributes.lastModifiedTime().toMillis() < startedAt) {
+								delete(file);
+							}
+						} else if (!STAMPED.matcher(name).matches()) {
+							delete(file);
+						} else {
+							found.add(new Found(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				log.warn("Couldn't read thumbnails in {}", dir, e);
+			}
+		}
+		found.sort(Comparator.comparingLong(Found::lastModified));
+		List<Path> delete = new ArrayList<>();
+		synchronized (entries) {
+			// Entries added while we were walking are more recent than anything found on disk
+			LinkedHashMap<Path, Entry> recent = new LinkedHashMap<>(entries);
+			entries.clear();
+			for (Found thumbnail : found) {
+				Entry old = entries.put(base(thumbnail.file()), new Entry(thumbnail.file(), thumbnail.size()));
+				if (old != null && !old.file().equals(thumbnail.file())) {
+					// An older version of the same image's thumbnail
+					delete.add(old.file());
+				}
+			}
+			for (Map.Entry<Path, Entry> entry : recent.entrySet()) {
+				Entry old = entries.remove(entry.getKey());
+				if (old != null && !old.file().equals(entry.getValue().file())) {
+					delete.add(old.file());
+				}
+				entries.put(entry.getKey(), entry.getValue());
+			}
+			cachedBytes = entries.values().stream().mapToLong(Entry::size).sum();
+			Iterator<Entry> iterator = entries.values().iterator();
+			while (cachedBytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+				Entry eldest = iterator.next();
+				iterator.remove();
+				cachedBytes -= eldest.size();
+				evictions.increment();
+				evictedBytes.add(eldest.size());
+				delete.add(eldest.file());
+			}
+			loaded = true;
+		}
+		delete.forEach(this::delete);
+		log.info("Found {} thumbnails taking {} bytes", found.size(), cachedBytes);
+	}
+
+	private List<Path> thumbnailDirs() {
+		List<Path> dirs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, DIR_PREFIX + "*")) {
+			for (Path dir : stream) {
+				if (Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+					dirs.add(dir);
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Couldn't list thumbnail dirs in {}", root, e);
+		}
+		return dirs;
+	}
+
+	private Path base(Path thumbnail) {
+		Matcher matcher = STAMPED.matcher(thumbnail.getFileName().toString());
+		return matcher.matches() ? thumbnail.resolveSibling(matcher.group(1)) : thumbnail;
+	}
+
+	private long size(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	private void delete(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			log.warn("Couldn't delete thumbnail {}", path, e);
+		}
+	}
+
+	private void deleteTree(Path dir) {
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path path, IOException e) {
+					delete(path);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.warn("Couldn't delete thumbnails in {}", dir, e);
+		}
+	}
+
+}
@@ -0,0 +1,180 @@
+package com.csetutorials.vuedisk.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.log4j.Log4j2;
+import org.apache.catalina.connector.CoyoteOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the most used thumbnails in direct buffers outside the heap, up to {@code vuedisk.thumbnails.memory-cache-mb},
+ * so a gallery shown again is answered without reading the disk and without copying the image through the heap.
+ * Thumbnails are keyed by their stamped path, which changes with the image, so an entry never goes stale and the
+ * stamp doubles as the {@code ETag}.
+ */
+@Service
+@Log4j2
+public class ThumbnailMemoryCacheService {
+
+	@Value("${vuedisk.thumbnails.memory-cache-mb}")
+	private long memoryCacheMb;
+
+	@Value("${vuedisk.thumbnails.memory-cache-max-entry-kb}")
+	private long maxEntryKb;
+
+	@Value("${vuedisk.media.cache-control}")
+	private String cacheControl;
+
+	private long maxBytes;
+
+	private final LinkedHashMap<Path, Thumbnail> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long cachedBytes;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder notModified = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * A thumbnail ready to be sent. The buffer is shared, write it through a duplicate.
+	 */
+	public record Thumbnail(ByteBuffer data, String etag) {
+	}
+
+	@PostConstruct
+	public void init() {
+		maxBytes = memoryCacheMb * 1024 * 1024;
+	}
+
+	public Thumbnail get(Path thumbnail) {
+		Thumbnail cached;
+		synchronized (entries) {
+			cached = entries.get(thumbnail);
+		}
+		if (cached != null) {
+			hits.increment();
+		}
+		return cached;
+	}
+
+	/**
+	 * Reads a thumbnail from disk into the cache. Returns {@code null} for one too big to keep, such as the
+	 * original image standing in for a thumbnail which couldn't be made.
+	 */
+	public Thumbnail load(Path thumbnail) throws IOException {
+		misses.increment();
+		try (FileChannel channel = FileChannel.open(thumbnail, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > maxEntryKb * 1024 || size > maxBytes) {
+				return null;
+			}
+			ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+			while (data.hasRemaining()) {
+				if (channel.read(data) < 0) {
+					throw new IOException(thumbnail + " shrank while it was being read");
+				}
+			}
+			data.flip();
+			Thumbnail loaded = new Thumbnail(data.asReadOnlyBuffer(), etag(thumbnail));
+			store(thumbnail, loaded);
+			return loaded;
+		}
+	}
+
+	/**
+	 * Answers the request with the thumbnail, or with 304 if the browser already has it.
+	 */
+	public void serve(Thumbnail thumbnail, String fileName, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		response.setHeader(HttpHeaders.ETAG, thumbnail.etag());
+		response.setHeader(HttpHeaders.CACHE_CONTROL, cacheControl);
+		String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null && ifNoneMatch.contains(thumbnail.etag())) {
+			notModified.increment();
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		ByteBuffer data = thumbnail.data().duplicate();
+		response.setContentType(MediaType.IMAGE_JPEG_VALUE);
+		ContentDisposition.Builder disposition = ContentDisposition.inline();
+		if (StandardCharsets.US_ASCII.newEncoder().canEncode(fileName)) {
+			disposition.filename(fileName);
+		} else {
+			disposition.filename(fileName, StandardCharsets.UTF_8);
+		}
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, disposition.build().toString());
+		response.setContentLength(data.remaining());
+		if ("HEAD".equals(request.getMethod())) {
+			return;
+		}
+		ServletOutputStream out = response.getOutputStream();
+		if (out instanceof CoyoteOutputStream coyote) {
+			// Tomcat copies straight from the buffer into its socket buffer
+			coyote.write(data);
+		} else {
+			Channels.newChannel(out).write(data);
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("hits", hitCount);
+		map.put("misses", missCount);
+		map.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		map.put("notModified", notModified.sum());
+		map.put("evictions", evictions.sum());
+		synchronized (entries) {
+			map.put("thumbnails", entries.size());
+			map.put("cachedBytes", cachedBytes);
+		}
+		map.put("maxBytes", maxBytes);
+		return map;
+	}
+
+	private void store(Path path, Thumbnail thumbnail) {
+		synchronized (entries) {
+			Thumbnail old = entries.put(path, thumbnail);
+			cachedBytes += thumbnail.data().capacity() - (old == null ? 0 : old.data().capacity());
+			Iterator<Thumbnail> iterator = entries.values().iterator();
+			while (cachedBytes > maxBytes && iterator.hasNext()) {
+				// Dropping the last reference is enough, the buffer's memory is freed once it is collected
+				cachedBytes -= iterator.next().data().capacity();
+				iterator.remove();
+				evictions.increment();
+			}
+		}
+	}
+
+	/**
+	 * The image's mtime and size from the thumbnail's name, which is all its content depends on.
+	 */
+	private String etag(Path thumbnail) {
+		String name = thumbnail.getFileName().toString();
+		return "\"" + name.substring(name.lastIndexOf('.') + 1) + "\"";
+	}
+
+}
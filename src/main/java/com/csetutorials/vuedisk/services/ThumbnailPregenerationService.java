@@ -0,0 +1,225 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.FileChangeEvent;
+import com.csetutorials.vuedisk.beans.FilesListObj;
+import com.csetutorials.vuedisk.beans.ThumbnailPriority;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates thumbnails before anyone asks for them. A directory is queued when it is listed and a file when VueDisk
+ * writes it, and a single background thread works through the queue with low priority. After each generation it
+ * rests long enough to stay within {@code vuedisk.thumbnails.pregenerate.cpu-budget} of one worker's time, which
+ * bounds the disk reads it causes as well, and it holds off entirely while interactive thumbnails are queued.
+ */
+@Service
+@Log4j2
+public class ThumbnailPregenerationService {
+
+	/**
+	 * How many directories are remembered as already scanned.
+	 */
+	private static final int MAX_TRACKED_DIRS = 1024;
+
+	private static final long BUSY_BACKOFF_MS = 100;
+
+	@Autowired
+	private FileService fileService;
+
+	@Autowired
+	private ThumbnailService thumbnailService;
+
+	@Autowired
+	private ThumbnailCacheService thumbnailCache;
+
+	@Value("${vuedisk.thumbnails.pregenerate.enabled}")
+	private boolean enabled;
+
+	@Value("${vuedisk.thumbnails.pregenerate.cpu-budget}")
+	private double cpuBudget;
+
+	@Value("${vuedisk.thumbnails.pregenerate.max-pending}")
+	private int maxPending;
+
+	private BlockingQueue<Path> queue;
+
+	private final Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Modification time of each directory when it was last scanned, so listing it again doesn't rescan it.
+	 */
+	private final LinkedHashMap<Path, Long> scanned = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Path, Long> eldest) {
+			return size() > MAX_TRACKED_DIRS;
+		}
+	};
+
+	private final LongAdder generated = new LongAdder();
+
+	private final LongAdder skipped = new LongAdder();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final LongAdder failed = new LongAdder();
+
+	private Thread worker;
+
+	@PostConstruct
+	public void init() {
+		queue = new LinkedBlockingQueue<>(maxPending);
+		if (!enabled) {
+			return;
+		}
+		worker = new Thread(this::work, "thumbnail-pregeneration");
+		worker.setDaemon(true);
+		worker.setPriority(Thread.MIN_PRIORITY);
+		worker.start();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (worker != null) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * Queues the images of a directory which was just listed, unless it hasn't changed since it was last scanned.
+	 */
+	public void onListed(File dir) {
+		if (!enabled || thumbnailCache.isThumbnail(dir.toPath())) {
+			return;
+		}
+		Path key = dir.toPath().toAbsolutePath().normalize();
+		long mtime = dir.lastModified();
+		synchronized (scanned) {
+			Long previous = scanned.get(key);
+			if (previous != null && previous == mtime) {
+				return;
+			}
+		}
+		enqueue(key);
+	}
+
+	@EventListener
+	public void onFileChange(FileChangeEvent event) {
+		if (!enabled) {
+			return;
+		}
+		for (Path path : event.getPaths()) {
+			if (thumbnailCache.isThumbnail(path)) {
+				continue;
+			}
+			if (Files.isDirectory(path) || thumbnailService.canDecode(path.getFileName().toString())) {
+				enqueue(path.toAbsolutePath().normalize());
+			}
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("enabled", enabled);
+		map.put("pending", queue.size());
+		map.put("generated", generated.sum());
+		map.put("skipped", skipped.sum());
+		map.put("dropped", dropped.sum());
+		map.put("failed", failed.sum());
+		return map;
+	}
+
+	/**
+	 * Returns false if the queue was full and the path was dropped.
+	 */
+	private boolean enqueue(Path path) {
+		if (pending.add(path) && !queue.offer(path)) {
+			pending.remove(path);
+			dropped.increment();
+			return false;
+		}
+		return true;
+	}
+
+	private void work() {
+		try {
+			while (true) {
+				Path path = queue.take();
+				pending.remove(path);
+				if (Files.isDirectory(path)) {
+					scan(path);
+				} else if (Files.isRegularFile(path)) {
+					generate(path.toFile());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void scan(Path dir) {
+		long mtime = dir.toFile().lastModified();
+		boolean complete = true;
+		for (FilesListObj obj : fileService.list(dir.toFile())) {
+			if (obj.isDir() || !obj.isImage() || !thumbnailService.canDecode(obj.getName())) {
+				continue;
+			}
+			Path image = dir.resolve(obj.getName());
+			// Skipping finished ones here lets a rescan after a full queue get further than the last one
+			if (thumbnailService.hasThumbnails(image.toFile())) {
+				skipped.increment();
+			} else {
+				complete &= enqueue(image);
+			}
+		}
+		if (!complete) {
+			// Listing the directory again queues whatever didn't fit this time
+			return;
+		}
+		synchronized (scanned) {
+			scanned.put(dir, mtime);
+		}
+	}
+
+	private void generate(File file) throws InterruptedException {
+		if (thumbnailService.hasThumbnails(file)) {
+			skipped.increment();
+			return;
+		}
+		// Interactive requests go first, and once running a background generation can't be preempted
+		while (thumbnailService.getQueueDepth() > 0) {
+			TimeUnit.MILLISECONDS.sleep(BUSY_BACKOFF_MS);
+		}
+		long started = System.nanoTime();
+		try {
+			thumbnailService.getThumbnail(file, "small", ThumbnailPriority.LOW);
+			thumbnailService.getThumbnail(file, "large", ThumbnailPriority.LOW);
+			generated.increment();
+		} catch (IOException e) {
+			failed.increment();
+			log.debug("Couldn't pregenerate thumbnails of {}", file, e);
+		}
+		if (cpuBudget > 0 && cpuBudget < 1) {
+			long took = System.nanoTime() - started;
+			TimeUnit.NANOSECONDS.sleep((long) (took * (1 - cpuBudget) / cpuBudget));
+		}
+	}
+
+}
@@ -1,23 +1,52 @@
 package com.csetutorials.vuedisk.services;
 
+import com.csetutorials.vuedisk.beans.ThumbnailPriority;
 import com.mortennobel.imagescaling.ResampleOp;
-import javafx.embed.swing.SwingFXUtils;
-import javafx.scene.image.Image;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.imaging.ImageReadException;
 import org.apache.commons.imaging.Imaging;
-import org.apache.commons.imaging.common.ImageMetadata;
 import org.apache.commons.imaging.formats.jpeg.JpegImageMetadata;
-import org.apache.commons.imaging.formats.jpeg.exif.ExifRewriter;
-import org.apache.commons.imaging.formats.tiff.TiffImageMetadata;
-import org.apache.commons.imaging.formats.tiff.write.TiffOutputSet;
+import org.apache.commons.imaging.formats.tiff.TiffField;
+import org.apache.commons.imaging.formats.tiff.constants.TiffTagConstants;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Generates thumbnails on a small pool of workers. Decoding a photo takes a lot of memory, so the pool is sized to
+ * whichever is lower of the cores and the number of decodes that fit in {@code vuedisk.thumbnails.memory-budget-mb}.
+ * Requests for a thumbnail which is already being generated wait for that generation instead of starting another,
+ * and thumbnails somebody is looking at go ahead of ones generated in the background. A thumbnail is written under
+ * a temporary name and renamed into place, so a reader never sees half of one.
+ */
 @Service
 @Log4j2
 public class ThumbnailService {
@@ -25,66 +54,476 @@ public class ThumbnailService {
 	@Autowired
 	FileService fileService;
 
+	@Autowired
+	ThumbnailCacheService thumbnailCache;
+
+	@Autowired
+	MeterRegistry meterRegistry;
+
 	private static final int SMALL = 320;
 	private static final int LARGE = 720;
 
+	@Value("${vuedisk.thumbnails.workers}")
+	private int workers;
+
+	@Value("${vuedisk.thumbnails.memory-budget-mb}")
+	private long memoryBudgetMb;
+
+	@Value("${vuedisk.thumbnails.decode-memory-mb}")
+	private long decodeMemoryMb;
+
+	@Value("${vuedisk.thumbnails.quality}")
+	private float quality;
+
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * Keyed by the thumbnail's path, which names the version of the image it is for.
+	 */
+	private final Map<Path, Task> inFlight = new ConcurrentHashMap<>();
+
+	private final AtomicLong sequence = new AtomicLong();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	private final LongAdder promoted = new LongAdder();
+
+	private final LongAdder demoted = new LongAdder();
+
+	private final LongAdder generated = new LongAdder();
+
+	private final LongAdder failed = new LongAdder();
+
+	private Timer waitTimer;
+
+	private final LongAdder waitNanos = new LongAdder();
+
+	private final LongAdder generateNanos = new LongAdder();
+
+	private final LongAccumulator maxGenerateNanos = new LongAccumulator(Long::max, 0);
+
+	@FunctionalInterface
+	public interface ThumbnailConsumer {
+
+		void accept(File file, File thumbnail) throws IOException;
+
+	}
+
+	/**
+	 * One generation, shared by everyone asking for the same thumbnail while it is queued or running. Within a
+	 * priority, tasks run in the order they were asked for.
+	 */
+	private final class Task implements Runnable, Comparable<Task> {
+
+		private final File file;
+
+		private final int height;
+
+		private final Path target;
+
+		private final CompletableFuture<File> future = new CompletableFuture<>();
+
+		private final long queuedAt = System.nanoTime();
+
+		private volatile ThumbnailPriority priority;
+
+		private volatile long order;
+
+		private Task(File file, int height, Path target, ThumbnailPriority priority) {
+			this.file = file;
+			this.height = height;
+			this.target = target;
+			this.priority = priority;
+			this.order = sequence.incrementAndGet();
+		}
+
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			waitNanos.add(started - queuedAt);
+			waitTimer.record(started - queuedAt, TimeUnit.NANOSECONDS);
+			String outcome = "existing";
+			try {
+				if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+					outcome = "failure";
+					generate(file, target, height);
+					thumbnailCache.added(target);
+					generated.increment();
+					outcome = "success";
+				}
+				future.complete(target.toFile());
+			} catch (IOException | RuntimeException e) {
+				failed.increment();
+				future.completeExceptionally(e);
+			} finally {
+				inFlight.remove(target, this);
+				long took = System.nanoTime() - started;
+				generateNanos.add(took);
+				maxGenerateNanos.accumulate(took);
+				Timer.builder("vuedisk.thumbnails.generate")
+						.tag("size", height == SMALL ? "small" : "large")
+						.tag("outcome", outcome)
+						.register(meterRegistry)
+						.record(took, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			int byPriority = priority.compareTo(other.priority);
+			return byPriority != 0 ? byPriority : Long.compare(order, other.order);
+		}
+
+	}
+
+	@PostConstruct
+	public void init() {
+		int threads = workers > 0 ? workers : defaultWorkers();
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+		waitTimer = Timer.builder("vuedisk.thumbnails.wait").description("Time thumbnails spend queued")
+				.register(meterRegistry);
+		Gauge.builder("vuedisk.thumbnails.queued", executor, pool -> pool.getQueue().size()).register(meterRegistry);
+		Gauge.builder("vuedisk.thumbnails.active", executor, ThreadPoolExecutor::getActiveCount)
+				.register(meterRegistry);
+		log.info("Generating thumbnails with {} worker(s)", threads);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		executor.shutdownNow();
+	}
+
+	private int defaultWorkers() {
+		long budget = memoryBudgetMb > 0 ? memoryBudgetMb : Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024;
+		long fit = Math.max(1, budget / Math.max(1, decodeMemoryMb));
+		return (int) Math.min(Runtime.getRuntime().availableProcessors(), fit);
+	}
+
 	public File getThumbnail(File file, String thumbnailSize) throws IOException {
-		int height = thumbnailSize.equals("small") ? SMALL : LARGE;
-		String relativePath = file.getAbsolutePath().substring(fileService.getBaseDir().length() + 1);
-		if (relativePath.startsWith(".thumbnails-")) {
+		return getThumbnail(file, thumbnailSize, ThumbnailPriority.HIGH);
+	}
+
+	/**
+	 * Where the thumbnail of the file's current version is kept, whether or not it has been made yet.
+	 */
+	public Path getThumbnailPath(File file, String thumbnailSize) throws IOException {
+		return thumbnailCache.path(file, height(thumbnailSize));
+	}
+
+	public File getThumbnail(File file, String thumbnailSize, ThumbnailPriority priority) throws IOException {
+		int height = height(thumbnailSize);
+		if (thumbnailCache.isThumbnail(file.toPath())) {
 			return file;
 		}
-		File target = new File(fileService.getBaseDir() + File.separator + ".thumbnails-height-" + height + File.separator + relativePath);
-		if (target.exists()) {
-			return target;
-		}
-		fileService.mkdirs(target.getParentFile());
-		// Create an InputStream object from the File object.
-		InputStream inputStream = new FileInputStream(file);
-
-		// Create an Image object by passing the InputStream object to the constructor.
-		Image image = new Image(inputStream);
-		BufferedImage bufferedImage = SwingFXUtils.fromFXImage(image, null);
-		try (InputStream compressedStream = compress(bufferedImage, (double) height)) {
-
-			// Preserve image orientation
-			TiffOutputSet outputSet = null;
-			ImageMetadata metadata = Imaging.getMetadata(file);
-			if (metadata instanceof JpegImageMetadata) {
-				TiffImageMetadata exif = ((JpegImageMetadata) metadata).getExif();
-				if (exif != null) {
-					outputSet = exif.getOutputSet();
-				}
+		Path target = thumbnailCache.path(file, height);
+		if (thumbnailCache.contains(target)) {
+			return target.toFile();
+		}
+		Task task = new Task(file, height, target, priority);
+		Task running = inFlight.putIfAbsent(target, task);
+		if (running == null) {
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				// Shutting down, nobody would ever complete or remove the task
+				inFlight.remove(target, task);
+				throw e;
+			}
+		} else {
+			coalesced.increment();
+			if (priority.compareTo(running.priority) < 0) {
+				reprioritize(running, priority);
+			}
+			task = running;
+		}
+		return await(task.future);
+	}
+
+	/**
+	 * Moves the queued thumbnails of these files to another priority, typically because they were scrolled out of
+	 * or back into view before they arrived. Thumbnails that are done, being generated or never asked for are left
+	 * alone.
+	 */
+	public void reprioritize(List<File> files, String thumbnailSize, ThumbnailPriority priority) throws IOException {
+		int height = height(thumbnailSize);
+		for (File file : files) {
+			Task task = inFlight.get(thumbnailCache.path(file, height));
+			if (task != null && task.priority != priority) {
+				reprioritize(task, priority);
 			}
+		}
+	}
+
+	private int height(String thumbnailSize) {
+		return thumbnailSize.equals("small") ? SMALL : LARGE;
+	}
 
-			// Write the processed image to target file with preserved orientation
-			try (OutputStream os = new FileOutputStream(target)) {
-				if (outputSet != null) {
-					new ExifRewriter().updateExifMetadataLossless(compressedStream, os, outputSet);
-				} else {
-					byte[] buffer = new byte[1024];
-					int length;
-					while ((length = compressedStream.read(buffer)) > 0) {
-						os.write(buffer, 0, length);
+	/**
+	 * Gets the thumbnails of several files at once and hands each to {@code consumer}, on the calling thread, as soon
+	 * as it is ready rather than in the order of {@code files}. Files whose thumbnail can't be made are skipped.
+	 */
+	public void getThumbnails(List<File> files, String thumbnailSize, ThumbnailPriority priority,
+							  ThumbnailConsumer consumer) throws IOException {
+		try (ExecutorService waiters = Executors.newVirtualThreadPerTaskExecutor()) {
+			CompletionService<File[]> completion = new ExecutorCompletionService<>(waiters);
+			for (File file : files) {
+				completion.submit(() -> new File[]{file, getThumbnail(file, thumbnailSize, priority)});
+			}
+			try {
+				for (int i = 0; i < files.size(); i++) {
+					File[] result;
+					try {
+						result = completion.take().get();
+					} catch (ExecutionException e) {
+						log.debug("Skipping thumbnail in batch", e.getCause());
+						continue;
 					}
+					consumer.accept(result[0], result[1]);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for thumbnails", e);
+			} finally {
+				// Whoever we were writing to is gone if we got here early, stop waiting for the rest
+				waiters.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Whether thumbnails of this file can be generated at all, going by its extension.
+	 */
+	public boolean canDecode(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot > 0 && ImageIO.getImageReadersBySuffix(fileName.substring(dot + 1).toLowerCase()).hasNext();
+	}
+
+	/**
+	 * Thumbnails waiting for a worker.
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public boolean hasThumbnails(File file) {
+		try {
+			return Files.exists(thumbnailCache.path(file, SMALL), LinkOption.NOFOLLOW_LINKS)
+					&& Files.exists(thumbnailCache.path(file, LARGE), LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Moves a queued task ahead once somebody actually waits for it, or behind once its page scrolled away. The
+	 * queue only orders tasks when they are inserted, so the task is taken out and put back.
+	 */
+	private void reprioritize(Task task, ThumbnailPriority priority) {
+		if (!executor.remove(task)) {
+			return;
+		}
+		boolean promote = priority.compareTo(task.priority) < 0;
+		task.priority = priority;
+		task.order = sequence.incrementAndGet();
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(task.target, task);
+			task.future.completeExceptionally(e);
+			return;
+		}
+		(promote ? promoted : demoted).increment();
+	}
+
+	private File await(CompletableFuture<File> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a thumbnail", e);
+		}
+	}
+
+	public Map<String, Object> getStats() {
+		long runs = executor.getCompletedTaskCount();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("workers", executor.getMaximumPoolSize());
+		map.put("active", executor.getActiveCount());
+		map.put("queued", executor.getQueue().size());
+		map.put("inFlight", inFlight.size());
+		map.put("coalesced", coalesced.sum());
+		map.put("promoted", promoted.sum());
+		map.put("demoted", demoted.sum());
+		map.put("generated", generated.sum());
+		map.put("failed", failed.sum());
+		map.put("avgWaitMs", runs == 0 ? 0 : waitNanos.sum() / runs / 1_000_000.0);
+		map.put("avgGenerateMs", runs == 0 ? 0 : generateNanos.sum() / runs / 1_000_000.0);
+		map.put("maxGenerateMs", maxGenerateNanos.get() / 1_000_000.0);
+		return map;
+	}
+
+	private void generate(File file, Path target, int height) throws IOException {
+		fileService.mkdirs(target.getParent().toFile());
+		Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			try {
+				write(scale(file, height), temp.toFile());
+			} catch (Exception e) {
+				log.error("Problem while creating thumbnail of image {}", file.getAbsolutePath(), e);
+				Files.deleteIfExists(temp);
+				Files.createSymbolicLink(temp, file.toPath());
+			}
+			moveIntoPlace(temp, target);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private void moveIntoPlace(Path temp, Path target) throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Returns the image at {@code height} pixels high (or its own height if that is smaller), upright and without
+	 * transparency. The source is never decoded at full resolution: the EXIF thumbnail is used when it is big enough,
+	 * otherwise the decoder skips rows and columns down to about twice the wanted size before it is resampled.
+	 */
+	private BufferedImage scale(File file, int height) throws IOException {
+		JpegImageMetadata metadata = jpegMetadata(file);
+		int orientation = orientation(metadata);
+		boolean sideways = orientation >= 5;
+		try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if (input == null) {
+				throw new IOException("Can't read " + file);
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("No decoder for " + file);
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				int width = reader.getWidth(0);
+				int sourceHeight = reader.getHeight(0);
+				double factor = Math.min(1, (double) height / (sideways ? width : sourceHeight));
+				int targetWidth = Math.max(1, (int) Math.round(width * factor));
+				int targetHeight = Math.max(1, (int) Math.round(sourceHeight * factor));
+
+				BufferedImage image = exifThumbnail(metadata, width, sourceHeight, targetWidth, targetHeight);
+				if (image == null) {
+					ImageReadParam param = reader.getDefaultReadParam();
+					int subsampling = (int) Math.max(1, 1 / factor / 2);
+					param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+					image = reader.read(0, param);
 				}
+				if (image.getWidth() != targetWidth || image.getHeight() != targetHeight) {
+					ResampleOp resizeOp = new ResampleOp(targetWidth, targetHeight);
+					// The pool already keeps every core busy
+					resizeOp.setNumberOfThreads(1);
+					image = resizeOp.filter(image, null);
+				}
+				return orient(image, orientation);
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private JpegImageMetadata jpegMetadata(File file) {
+		try {
+			return Imaging.getMetadata(file) instanceof JpegImageMetadata jpeg ? jpeg : null;
+		} catch (ImageReadException | IOException | RuntimeException e) {
+			log.debug("No metadata in {}", file, e);
+			return null;
+		}
+	}
+
+	private int orientation(JpegImageMetadata metadata) {
+		if (metadata == null) {
+			return 1;
+		}
+		try {
+			TiffField field = metadata.findEXIFValueWithExactMatch(TiffTagConstants.TIFF_TAG_ORIENTATION);
+			int orientation = field == null ? 1 : field.getIntValue();
+			return orientation >= 1 && orientation <= 8 ? orientation : 1;
+		} catch (ImageReadException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * The thumbnail cameras embed, if it is at least as big as the one we want and of the same shape, so it isn't
+	 * letterboxed.
+	 */
+	private BufferedImage exifThumbnail(JpegImageMetadata metadata, int width, int height, int targetWidth,
+										int targetHeight) {
+		if (metadata == null) {
+			return null;
+		}
+		try {
+			Dimension size = metadata.getEXIFThumbnailSize();
+			if (size == null || size.width < targetWidth || size.height < targetHeight
+					|| Math.abs((double) size.width / size.height - (double) width / height) > 0.01) {
+				return null;
 			}
-		} catch (Exception e) {
-			log.error("Problem while creating thumbnail of image {}", file.getAbsolutePath(), e);
-			Files.createSymbolicLink(target.toPath(), file.toPath());
+			return metadata.getEXIFThumbnail();
+		} catch (ImageReadException | IOException e) {
+			return null;
 		}
-		return target;
 	}
 
-	public InputStream compress(BufferedImage bufferedImage, Double targetHeight) throws IOException {
-		var outputStream = new ByteArrayOutputStream();
+	/**
+	 * Turns the image upright according to its EXIF orientation, as the thumbnail carries no EXIF of its own, and
+	 * flattens it onto white since JPEG has no alpha.
+	 */
+	private BufferedImage orient(BufferedImage image, int orientation) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		AffineTransform transform = switch (orientation) {
+			case 2 -> new AffineTransform(-1, 0, 0, 1, w, 0);
+			case 3 -> new AffineTransform(-1, 0, 0, -1, w, h);
+			case 4 -> new AffineTransform(1, 0, 0, -1, 0, h);
+			case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);
+			case 6 -> new AffineTransform(0, 1, -1, 0, h, 0);
+			case 7 -> new AffineTransform(0, -1, -1, 0, h, w);
+			case 8 -> new AffineTransform(0, -1, 1, 0, 0, w);
+			default -> new AffineTransform();
+		};
+		if (transform.isIdentity() && image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			return image;
+		}
+		boolean sideways = orientation >= 5;
+		BufferedImage result = new BufferedImage(sideways ? h : w, sideways ? w : h, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D graphics = result.createGraphics();
+		try {
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, result.getWidth(), result.getHeight());
+			graphics.drawImage(image, transform, null);
+		} finally {
+			graphics.dispose();
+		}
+		return result;
+	}
 
-		double originalWidth = bufferedImage.getWidth();
-		double originalHeight = bufferedImage.getHeight();
-		double targetWidth = (originalWidth * targetHeight) / originalHeight;
-		ResampleOp resizeOp = new ResampleOp((int) targetWidth, targetHeight.intValue());
-		BufferedImage resizedImage = resizeOp.filter(bufferedImage, null);
-		ImageIO.write(resizedImage, "jpg", outputStream);
-		return new ByteArrayInputStream(outputStream.toByteArray());
+	/**
+	 * Encodes straight into the file rather than through an in-memory copy.
+	 */
+	private void write(BufferedImage image, File file) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+		try (ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
 	}
 }
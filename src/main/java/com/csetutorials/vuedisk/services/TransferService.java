@@ -0,0 +1,363 @@
+package com.csetutorials.vuedisk.services;
+
+import com.csetutorials.vuedisk.beans.JobProgress;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Copies and moves file trees.
+ * <p>
+ * Moves within one file store are plain renames, so a whole subtree moves in a single {@code rename(2)} whatever
+ * its size; only when the target directory already exists are the two trees merged entry by entry. Across file
+ * stores, and for copies, files are transferred with {@link FileChannel#transferTo} (which the JDK turns into
+ * {@code copy_file_range}/{@code sendfile} on Linux) on a bounded worker pool, and moved sources are deleted only
+ * once their copy has succeeded.
+ */
+@Service
+@Log4j2
+public class TransferService {
+
+	private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+	@Autowired
+	private FileService fileService;
+
+	@Autowired
+	private SizeIndexService sizeIndex;
+
+	@Value("${vuedisk.transfer.concurrency}")
+	private int concurrency;
+
+	private ExecutorService workers;
+
+	private int window;
+
+	@PostConstruct
+	public void init() {
+		int threads = concurrency > 0 ? concurrency : Runtime.getRuntime().availableProcessors();
+		workers = Executors.newFixedThreadPool(threads);
+		window = threads * 2;
+	}
+
+	@PreDestroy
+	public void destroy() {
+		workers.shutdownNow();
+	}
+
+	public void copy(JobProgress progress, File sourceDir, File destinationDir, List<String> files) {
+		if (!createDirs(destinationDir.toPath(), progress)) {
+			return;
+		}
+		Path sourcePath = sourceDir.toPath();
+		Path destinationPath = destinationDir.toPath();
+		List<File> sources = fileService.parsePaths(sourceDir, files);
+		progress.setTotalBytes(estimate(sources));
+		Batch batch = new Batch();
+		for (File file : sources) {
+			if (progress.isStopped()) {
+				break;
+			}
+			copyTree(file.toPath(), sourcePath, destinationPath, progress, batch);
+		}
+		batch.await();
+		fileService.notifyChanged(destinationDir);
+	}
+
+	public void move(JobProgress progress, File sourceDir, File destinationDir, List<String> files) {
+		if (!createDirs(destinationDir.toPath(), progress)) {
+			return;
+		}
+		Batch batch = new Batch();
+		Deque<Path> emptiedDirs = new ArrayDeque<>();
+		List<File> sources = fileService.parsePaths(sourceDir, files);
+		if (!isSameStore(sourceDir.toPath(), destinationDir.toPath())) {
+			progress.setTotalBytes(estimate(sources));
+		}
+		for (File file : sources) {
+			if (progress.isStopped()) {
+				break;
+			}
+			Path source = file.toPath();
+			move(source, destinationDir.toPath().resolve(source.getFileName()), progress, batch, emptiedDirs);
+		}
+		batch.await();
+		// Children were pushed after their parents, so this deletes bottom-up
+		while (!emptiedDirs.isEmpty()) {
+			Path dir = emptiedDirs.pop();
+			try {
+				Files.deleteIfExists(dir);
+			} catch (DirectoryNotEmptyException e) {
+				log.warn("Keeping {}, some of its entries couldn't be moved", dir);
+			} catch (IOException e) {
+				log.error("Couldn't delete dir {}", dir, e);
+			}
+		}
+		List<File> changed = new ArrayList<>(sources);
+		changed.add(destinationDir);
+		fileService.notifyChanged(changed.toArray(File[]::new));
+	}
+
+	private void move(Path source, Path target, JobProgress progress, Batch batch, Deque<Path> emptiedDirs) {
+		if (progress.isStopped()) {
+			return;
+		}
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			log.warn("Couldn't read {}", source, e);
+			return;
+		}
+		boolean targetExists = Files.exists(target, LinkOption.NOFOLLOW_LINKS);
+		boolean sameStore = isSameStore(source, target.getParent());
+		if (sameStore && !(targetExists && attributes.isDirectory())) {
+			try {
+				if (targetExists) {
+					Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+				}
+				progress.addItems(1);
+				return;
+			} catch (AtomicMoveNotSupportedException e) {
+				log.debug("Rename of {} not supported, copying instead", source, e);
+			} catch (IOException e) {
+				log.error("Couldn't move {} to {}", source, target, e);
+				progress.addFailure();
+				return;
+			}
+		}
+		if (attributes.isDirectory()) {
+			if (!createDirs(target, progress)) {
+				return;
+			}
+			emptiedDirs.push(source);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+				for (Path child : stream) {
+					move(child, target.resolve(child.getFileName()), progress, batch, emptiedDirs);
+				}
+			} catch (IOException e) {
+				log.error("Couldn't list dir {}", source, e);
+				progress.addFailure();
+			}
+			progress.addItems(1);
+		} else {
+			batch.submit(() -> {
+				if (transfer(source, target, attributes, progress)) {
+					try {
+						Files.delete(source);
+					} catch (IOException e) {
+						log.error("Copied {} but couldn't delete it", source, e);
+						progress.addFailure();
+					}
+				}
+			});
+		}
+	}
+
+	private void copyTree(Path root, Path sourcePath, Path destinationPath, JobProgress progress, Batch batch) {
+		if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		try {
+			Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					if (progress.isStopped()) {
+						return FileVisitResult.TERMINATE;
+					}
+					if (!createDirs(destinationPath.resolve(sourcePath.relativize(dir)), progress)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					progress.addItems(1);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+					if (progress.isStopped()) {
+						return FileVisitResult.TERMINATE;
+					}
+					Path target = destinationPath.resolve(sourcePath.relativize(path));
+					batch.submit(() -> transfer(path, target, attrs, progress));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					log.warn("Couldn't read {}", file, e);
+					progress.addFailure();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					if (e != null) {
+						log.warn("Couldn't list dir {}", dir, e);
+						progress.addFailure();
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.error("Problem while copying {}", root, e);
+			progress.addFailure();
+		}
+	}
+
+	/**
+	 * Copies a single file (or symlink) and reports whether it made it completely. The content goes to a
+	 * temporary sibling which then replaces the target, so a failed or cancelled copy never leaves a truncated
+	 * target behind. A file copied onto itself, or onto a hard link of itself, is left alone and reported as not
+	 * copied so that a move doesn't go on to delete it.
+	 */
+	private boolean transfer(Path source, Path target, BasicFileAttributes attributes, JobProgress progress) {
+		if (progress.isStopped()) {
+			return false;
+		}
+		if (isSameFile(source, target)) {
+			log.debug("{} is already {}, nothing to copy", target, source);
+			progress.addItems(1);
+			return false;
+		}
+		Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+		try {
+			if (attributes.isSymbolicLink()) {
+				Files.copy(source, target, LinkOption.NOFOLLOW_LINKS, StandardCopyOption.REPLACE_EXISTING);
+			} else {
+				try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+					 FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					long size = in.size();
+					long position = 0;
+					while (position < size) {
+						if (progress.isStopped()) {
+							return false;
+						}
+						long transferred = in.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), out);
+						if (transferred <= 0) {
+							break;
+						}
+						position += transferred;
+						progress.addBytes(transferred);
+					}
+				}
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			progress.addItems(1);
+			return true;
+		} catch (IOException e) {
+			log.error("Problem while copying the file {}", source, e);
+			progress.addFailure();
+			return false;
+		} finally {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				log.warn("Couldn't delete {}", temp, e);
+			}
+		}
+	}
+
+	private boolean isSameFile(Path source, Path target) {
+		if (source.equals(target)) {
+			return true;
+		}
+		try {
+			return Files.exists(target, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(source, target);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Bytes the selection will transfer, as far as the size index knows them without walking anything. Returns 0
+	 * when some directory hasn't been sized yet.
+	 */
+	private long estimate(List<File> sources) {
+		long total = 0;
+		for (File file : sources) {
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				if (!attributes.isDirectory()) {
+					total += attributes.size();
+					continue;
+				}
+				SizeIndexService.Entry entry = sizeIndex.lookup(file.toPath(), attributes.lastModifiedTime().toMillis());
+				if (entry == null) {
+					return 0;
+				}
+				total += entry.bytes();
+			} catch (IOException e) {
+				return 0;
+			}
+		}
+		return total;
+	}
+
+	private boolean createDirs(Path dir, JobProgress progress) {
+		try {
+			Files.createDirectories(dir);
+			return true;
+		} catch (IOException e) {
+			log.error("Couldn't create dir {}", dir, e);
+			progress.addFailure();
+			return false;
+		}
+	}
+
+	private boolean isSameStore(Path source, Path targetDir) {
+		try {
+			return Files.getFileStore(source).equals(Files.getFileStore(targetDir));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * File transfers of one request. At most twice the pool size is queued, so the tree walk waits for the workers
+	 * instead of queueing every file of a huge tree up front.
+	 */
+	private class Batch {
+
+		private final int permits = window;
+
+		private final Semaphore semaphore = new Semaphore(permits);
+
+		void submit(Runnable task) {
+			semaphore.acquireUninterruptibly();
+			try {
+				workers.execute(() -> {
+					try {
+						task.run();
+					} finally {
+						semaphore.release();
+					}
+				});
+			} catch (RuntimeException e) {
+				semaphore.release();
+				throw e;
+			}
+		}
+
+		void await() {
+			semaphore.acquireUninterruptibly(permits);
+			semaphore.release(permits);
+		}
+
+	}
+
+}
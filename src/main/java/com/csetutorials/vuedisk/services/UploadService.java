@@ -1,120 +1,334 @@
 package com.csetutorials.vuedisk.services;
 
+import com.csetutorials.vuedisk.beans.UploadSession;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-import java.nio.file.StandardOpenOption;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
+/**
+ * Assembles chunked uploads. Each upload gets a part file of its final size under {@code .cache/vuedisk/uploads},
+ * every chunk is written straight to its offset in it, and the part file is renamed into place once all chunks
+ * have arrived. Chunks may come in any order and in parallel, and a client can ask which ones are already there to
+ * resume an interrupted upload.
+ * <p>
+ * Sessions live in memory. Ones left idle longer than {@code vuedisk.uploads.session-ttl-ms} are dropped together
+ * with their part file.
+ */
 @Service
+@Log4j2
 public class UploadService {
 
 	@Autowired
 	FileService fileService;
 
-	public void upload(MultipartFile file, String fileUniqueId, int chunkNumber, int totalChunks, String parentDir,
-					   String actualFileName) throws IOException {
-		String workspaceDir = fileService.getBaseDir() + File.separator
-				+ ".cache" + File.separator + "vuedisk" + File.separator + fileUniqueId;
-		File workspaceDirFile = new File(workspaceDir);
-		String tempTargetFilePath = workspaceDir + File.separator + fileUniqueId;
-		String lockPath = workspaceDir + File.separator + "lock" + File.separator;
-		File serialNumberFile = new File(workspaceDir + File.separator + "serialNo.txt");
-		fileService.mkdirs(workspaceDirFile);
-		// Moving the uploaded chunk file to our cache
-		File temp123 = new File(tempTargetFilePath + chunkNumber);
-		fileService.mkdirs(temp123.getParentFile());
-		Files.copy(file.getInputStream(), temp123.toPath(), StandardCopyOption.REPLACE_EXISTING);
-		// Creating lock path
-		File lockFile = new File(lockPath);
-		fileService.mkdirs(lockFile);
-		// Acquiring lock
-		while (!acquireLock(lockPath)) {
-			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
-			}
+	@Autowired
+	MeterRegistry meterRegistry;
+
+	@Value("${vuedisk.uploads.session-ttl-ms}")
+	private long sessionTtlMs;
+
+	@Value("${vuedisk.uploads.max-chunks}")
+	private int maxChunks;
+
+	private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+
+	private Timer chunkTimer;
+
+	private DistributionSummary chunkBytes;
+
+	private Timer mergeTimer;
+
+	@PostConstruct
+	public void init() {
+		// Sessions don't survive a restart, so neither does anything they left behind
+		fileService.delete(getUploadsDir().toFile());
+		chunkTimer = Timer.builder("vuedisk.uploads.chunk").description("Time to write one chunk to disk")
+				.register(meterRegistry);
+		chunkBytes = DistributionSummary.builder("vuedisk.uploads.chunk.bytes").baseUnit("bytes")
+				.register(meterRegistry);
+		mergeTimer = Timer.builder("vuedisk.uploads.merge").description("Time to move a complete upload into place")
+				.register(meterRegistry);
+		Gauge.builder("vuedisk.uploads.active", sessions, Map::size).register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		sessions.values().forEach(this::discard);
+	}
+
+	/**
+	 * Chunk of the single-request protocol, where the client picks the upload id and the upload finishes with its
+	 * last chunk. Chunks are numbered from 1.
+	 */
+	public void upload(MultipartFile file, String fileUniqueId, int chunkNumber, int totalChunks, long chunkSize,
+					   long totalSize, String parentDir, String actualFileName) throws IOException {
+		UploadSession session = getOrOpen(fileUniqueId, fileService.parsePath(parentDir), actualFileName, totalSize,
+				chunkSize);
+		if (session.getTotalChunks() != totalChunks) {
+			throw new IllegalArgumentException("Upload " + fileUniqueId + " has " + session.getTotalChunks()
+					+ " chunks, not " + totalChunks);
 		}
+		try (InputStream in = file.getInputStream()) {
+			write(session, chunkNumber - 1, in, file.getSize());
+		}
+	}
+
+	/**
+	 * Starts an upload which completes only when it is {@link #finish(String) finished}.
+	 */
+	public UploadSession create(File targetDir, String fileName, long totalSize, long chunkSize) throws IOException {
+		validate(fileName, totalSize, chunkSize);
+		UploadSession session = open(UUID.randomUUID().toString(), targetDir, fileName, totalSize, chunkSize, false);
+		sessions.put(session.getId(), session);
+		return session;
+	}
 
-		// Checking how many number of chunks have been merged serial wise
-		int serialNumber = getSerialNumber(serialNumberFile);
-		File destFile = new File(tempTargetFilePath + 0);
-		int i = serialNumber + 1;
-		for (; i <= totalChunks; i++) {
-			File srcFile = new File(tempTargetFilePath + i);
-			if (!srcFile.exists()) {
-				break;
+	public UploadSession get(String id) {
+		return sessions.get(id);
+	}
+
+	/**
+	 * Writes one chunk, numbered from 0. A chunk which is already there is skipped.
+	 */
+	public void write(UploadSession session, int chunk, InputStream in, long length) throws IOException {
+		if (session.isFinished()) {
+			throw new IllegalStateException("Upload " + session.getId() + " is already finished");
+		}
+		if (chunk < 0 || chunk >= session.getTotalChunks()) {
+			throw new IllegalArgumentException("Chunk " + (chunk + 1) + " is out of range");
+		}
+		if (length != session.length(chunk)) {
+			throw new IllegalArgumentException("Chunk " + (chunk + 1) + " should be " + session.length(chunk)
+					+ " bytes, got " + length);
+		}
+		if (!session.claim(chunk)) {
+			// A resent last chunk retries a finish which failed the first time
+			if (session.isAutoFinish() && session.isComplete() && !session.isFinished()) {
+				finish(session);
 			}
-			if (!destFile.exists()) {
-				fileService.renameTo(srcFile, destFile);
-			} else {
-				byte[] buff = Files.readAllBytes(srcFile.toPath());
-				Files.write(destFile.toPath(), buff, StandardOpenOption.APPEND);
-				fileService.deleteSilently(srcFile);
+			return;
+		}
+		boolean last;
+		try {
+			long started = System.nanoTime();
+			transfer(in, session.getChannel(), session.offset(chunk), length);
+			chunkTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+			chunkBytes.record(length);
+			last = session.complete(chunk);
+		} catch (IOException | RuntimeException e) {
+			session.release(chunk);
+			throw e;
+		}
+		if (last && session.isAutoFinish()) {
+			finish(session);
+		}
+	}
+
+	/**
+	 * Moves a complete upload into place. Finalizing an upload twice is harmless, and one whose move failed can be
+	 * finalized again.
+	 */
+	public UploadSession finish(String id) throws IOException {
+		UploadSession session = sessions.get(id);
+		if (session == null || session.isFinished()) {
+			return session;
+		}
+		if (!session.isComplete()) {
+			throw new IllegalStateException("Upload " + id + " is missing "
+					+ (session.getTotalChunks() - session.getReceivedChunks()) + " chunk(s)");
+		}
+		finish(session);
+		return session;
+	}
+
+	public boolean cancel(String id) {
+		UploadSession session = sessions.remove(id);
+		if (session == null) {
+			return false;
+		}
+		discard(session);
+		return true;
+	}
+
+	/**
+	 * Drops sessions nobody has touched within the TTL, and part files and workspaces of the old lock directory
+	 * protocol that no session owns.
+	 */
+	@Scheduled(fixedDelayString = "${vuedisk.uploads.gc-interval-ms}")
+	public void gc() {
+		long expiry = System.currentTimeMillis() - sessionTtlMs;
+		for (UploadSession session : sessions.values()) {
+			if (session.getLastAccess() < expiry && sessions.remove(session.getId(), session)) {
+				log.info("Upload {} of {} expired", session.getId(), session.getFileName());
+				discard(session);
 			}
 		}
-		setSerialNumber(serialNumberFile, i - 1);
-		int updatedSerialNumber = i - 1;
+		deleteStale(getUploadsDir(), expiry, path -> sessions.values().stream()
+				.noneMatch(session -> session.getPartFile().equals(path)));
+		deleteStale(fileService.getCacheDir(), expiry, path -> Files.exists(path.resolve("serialNo.txt"))
+				|| Files.exists(path.resolve("lock")));
+	}
 
-		if (updatedSerialNumber == totalChunks) {
-			File parentFile = fileService.parsePath(parentDir);
-			fileService.mkdirs(parentFile);
-			fileService.renameTo(destFile, parentFile.toPath().resolve(actualFileName).toFile());
-			fileService.delete(workspaceDirFile);
+	private void deleteStale(Path dir, long expiry, Predicate<Path> orphaned) {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (Files.getLastModifiedTime(path).toMillis() < expiry && orphaned.test(path)) {
+					log.info("Deleting stale upload workspace {}", path);
+					fileService.delete(path.toFile());
+				}
+			}
+		} catch (IOException e) {
+			log.warn("Couldn't clean up {}", dir, e);
 		}
-		releaseLock(lockPath);
 	}
 
-	private void releaseLock(String lockPath) {
-		fileService.delete(new File(lockPath));
+	private UploadSession getOrOpen(String id, File targetDir, String fileName, long totalSize, long chunkSize)
+			throws IOException {
+		validate(fileName, totalSize, chunkSize);
+		try {
+			return sessions.computeIfAbsent(id, key -> {
+				try {
+					return open(key, targetDir, fileName, totalSize, chunkSize, true);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
 
-	private void setSerialNumber(File serialNumberFile, int serialNumber) throws FileNotFoundException {
-		fileService.saveTextFile(serialNumberFile, String.valueOf(serialNumber));
+	private void validate(String fileName, long totalSize, long chunkSize) {
+		if (chunkSize <= 0 || totalSize < 0) {
+			throw new IllegalArgumentException("Invalid chunk size " + chunkSize + " or total size " + totalSize);
+		}
+		long chunks = UploadSession.chunkCount(totalSize, chunkSize);
+		if (chunks > maxChunks) {
+			throw new IllegalArgumentException(chunks + " chunks of " + chunkSize + " bytes is more than the "
+					+ maxChunks + " allowed");
+		}
+		if (fileName == null || fileName.isEmpty() || fileName.contains("/") || fileName.contains(File.separator)
+				|| fileName.equals("..")) {
+			throw new IllegalArgumentException("Invalid file name " + fileName);
+		}
 	}
 
-	private int getSerialNumber(File serialNumberFile) throws IOException {
-		if (serialNumberFile.exists()) {
-			return Integer.parseInt(new String(Files.readAllBytes(serialNumberFile.toPath())));
-		} else {
-			return 0;
+	private UploadSession open(String id, File targetDir, String fileName, long totalSize, long chunkSize,
+							   boolean autoFinish) throws IOException {
+		Path partFile = getUploadsDir().resolve(UUID.randomUUID() + ".part");
+		Files.createDirectories(partFile.getParent());
+		// The part file is sparse, so nothing else would stop it from claiming more than the disk can hold
+		long usable = Files.getFileStore(partFile.getParent()).getUsableSpace();
+		if (totalSize > usable) {
+			throw new IllegalArgumentException("Upload of " + totalSize + " bytes doesn't fit in the " + usable
+					+ " bytes available");
+		}
+		FileChannel channel = FileChannel.open(partFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		try {
+			if (totalSize > 0) {
+				// Sets the final length up front, so chunks landing out of order never have to grow the file
+				channel.write(ByteBuffer.allocate(1), totalSize - 1);
+			}
+		} catch (IOException e) {
+			channel.close();
+			Files.deleteIfExists(partFile);
+			throw e;
 		}
+		return new UploadSession(id, targetDir, fileName, totalSize, chunkSize, autoFinish, partFile, channel);
 	}
 
-	private boolean acquireLock(String lockPath) {
-		File lockDir = new File(lockPath);
-		if (isDirectoryEmpty(lockDir)) {
-			long time = System.currentTimeMillis();
-			fileService.mkdirs(new File(lockPath + File.separator + time));
-			return isLowestTimestamp(lockDir, time);
+	/**
+	 * Copies exactly {@code length} bytes of the chunk. A body of any other length is the client's mistake and is
+	 * rejected with {@link IllegalArgumentException}.
+	 */
+	private void transfer(InputStream in, FileChannel channel, long offset, long length) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(in);
+		long position = 0;
+		while (position < length) {
+			long transferred = channel.transferFrom(source, offset + position, length - position);
+			if (transferred <= 0) {
+				throw new IllegalArgumentException("Chunk ended after " + position + " of " + length + " bytes");
+			}
+			position += transferred;
+		}
+		if (in.read() >= 0) {
+			throw new IllegalArgumentException("Chunk is longer than " + length + " bytes");
 		}
-		return false;
 	}
 
-	private boolean isLowestTimestamp(File dir, long millis) {
-		File[] list = dir.listFiles();
-		if (list == null) {
-			return true;
+	private void finish(UploadSession session) throws IOException {
+		if (!session.close()) {
+			if (!session.isFinished()) {
+				throw new IllegalStateException("Upload " + session.getId() + " is already being finalized");
+			}
+			return;
 		}
-		for (File file : list) {
-			if (Long.parseLong(file.getName()) < millis) {
-				return false;
+		long started = System.nanoTime();
+		File targetDir = session.getTargetDir();
+		fileService.mkdirs(targetDir);
+		File targetFile = new File(targetDir, session.getFileName());
+		try {
+			try {
+				Files.move(session.getPartFile(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(session.getPartFile(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
+		} catch (IOException e) {
+			// The part file is still there and complete, leave the session open for another try
+			log.error("Couldn't move upload {} to {}", session.getId(), targetFile, e);
+			session.reopen(e.toString());
+			throw e;
 		}
-		return true;
+		session.getChannel().close();
+		mergeTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+		session.setFinished();
+		if (session.isAutoFinish()) {
+			sessions.remove(session.getId(), session);
+		}
+		fileService.notifyChanged(targetFile);
 	}
 
-	private boolean isDirectoryEmpty(File lockDir) {
-		if (!lockDir.exists()) {
-			return true;
+	private void discard(UploadSession session) {
+		if (!session.close()) {
+			return;
+		}
+		try {
+			session.getChannel().close();
+			Files.deleteIfExists(session.getPartFile());
+		} catch (IOException e) {
+			log.warn("Couldn't delete {}", session.getPartFile(), e);
 		}
-		File[] list = lockDir.listFiles();
-		return list == null || list.length == 0;
 	}
+
+	private Path getUploadsDir() {
+		return fileService.getCacheDir().resolve("uploads");
+	}
+
 }
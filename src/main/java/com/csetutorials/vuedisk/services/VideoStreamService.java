@@ -0,0 +1,238 @@
+package com.csetutorials.vuedisk.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams videos out of a shared cache of fixed size segments. Everyone watching the same file is served from
+ * the same segments, and each segment is read from disk once however many requests want it at the same time.
+ * Once a viewer reads sequentially, either within one response or with range requests that pick up where the
+ * previous one ended, the next segments are read ahead in the background so the disk sees long sequential reads
+ * instead of seeks interleaved between viewers.
+ */
+@Service
+@Log4j2
+public class VideoStreamService {
+
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+
+	/**
+	 * How many files the sequential access detection remembers.
+	 */
+	private static final int MAX_TRACKED_FILES = 1024;
+
+	@Autowired
+	private MediaStreamService mediaStreamService;
+
+	@Value("${vuedisk.video.cache-size-mb}")
+	private long cacheSizeMb;
+
+	@Value("${vuedisk.video.read-ahead-segments}")
+	private int readAheadSegments;
+
+	private long maxBytes;
+
+	private final LinkedHashMap<SegmentKey, byte[]> segments = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long cachedBytes;
+
+	private final Map<SegmentKey, CompletableFuture<byte[]>> loading = new ConcurrentHashMap<>();
+
+	/**
+	 * Last segment served per file version, to recognise a viewer whose next range request continues the last one.
+	 */
+	private final LinkedHashMap<FileKey, Long> lastSegments = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<FileKey, Long> eldest) {
+			return size() > MAX_TRACKED_FILES;
+		}
+	};
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder readAheads = new LongAdder();
+
+	private final LongAdder bytesServed = new LongAdder();
+
+	private final LongAdder bytesRead = new LongAdder();
+
+	private ExecutorService readAheadExecutor;
+
+	private record FileKey(Path path, long lastModified, long size) {
+	}
+
+	private record SegmentKey(FileKey file, long index) {
+	}
+
+	@PostConstruct
+	public void init() {
+		maxBytes = cacheSizeMb * 1024 * 1024;
+		readAheadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+	}
+
+	@PreDestroy
+	public void destroy() {
+		readAheadExecutor.shutdownNow();
+	}
+
+	public void serve(File file, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		mediaStreamService.serve(file, true, this::write, request, response);
+	}
+
+	public Map<String, Object> getStats() {
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		Map<String, Object> map = new LinkedHashMap<>();
+		map.put("hits", hitCount);
+		map.put("misses", missCount);
+		map.put("hitRate", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount));
+		map.put("readAheads", readAheads.sum());
+		map.put("bytesServed", bytesServed.sum());
+		map.put("bytesRead", bytesRead.sum());
+		synchronized (segments) {
+			map.put("segments", segments.size());
+			map.put("cachedBytes", cachedBytes);
+		}
+		map.put("maxBytes", maxBytes);
+		return map;
+	}
+
+	private void write(Path path, BasicFileAttributes attributes, long start, long length, OutputStream out)
+			throws IOException {
+		FileKey file = new FileKey(path, attributes.lastModifiedTime().toMillis(), attributes.size());
+		long first = start / SEGMENT_SIZE;
+		long last = (start + length - 1) / SEGMENT_SIZE;
+		Long previous;
+		synchronized (lastSegments) {
+			previous = lastSegments.get(file);
+		}
+		boolean sequential = previous != null && (previous == first || previous == first - 1);
+		for (long index = first; index <= last; index++) {
+			SegmentKey key = new SegmentKey(file, index);
+			byte[] segment = segment(key);
+			if (sequential || index > first) {
+				readAhead(file, index);
+			}
+			int offset = index == first ? (int) (start % SEGMENT_SIZE) : 0;
+			int end = index == last ? (int) ((start + length - 1) % SEGMENT_SIZE) + 1 : segment.length;
+			out.write(segment, offset, end - offset);
+			bytesServed.add(end - offset);
+			synchronized (lastSegments) {
+				lastSegments.put(file, index);
+			}
+		}
+	}
+
+	private byte[] segment(SegmentKey key) throws IOException {
+		byte[] cached = cached(key);
+		if (cached != null) {
+			hits.increment();
+			return cached;
+		}
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		CompletableFuture<byte[]> existing = loading.putIfAbsent(key, future);
+		if (existing != null) {
+			// Someone else, possibly the read-ahead, is reading it already
+			hits.increment();
+			return await(existing);
+		}
+		misses.increment();
+		load(key, future);
+		return await(future);
+	}
+
+	private void readAhead(FileKey file, long index) {
+		long segments = (file.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+		for (long next = index + 1; next <= index + readAheadSegments && next < segments; next++) {
+			SegmentKey key = new SegmentKey(file, next);
+			if (cached(key) != null) {
+				continue;
+			}
+			CompletableFuture<byte[]> future = new CompletableFuture<>();
+			if (loading.putIfAbsent(key, future) == null) {
+				readAheads.increment();
+				readAheadExecutor.execute(() -> load(key, future));
+			}
+		}
+	}
+
+	private void load(SegmentKey key, CompletableFuture<byte[]> future) {
+		try {
+			byte[] data = read(key);
+			store(key, data);
+			future.complete(data);
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+		} finally {
+			loading.remove(key, future);
+		}
+	}
+
+	private byte[] read(SegmentKey key) throws IOException {
+		long position = key.index() * SEGMENT_SIZE;
+		byte[] data = new byte[(int) Math.min(SEGMENT_SIZE, key.file().size() - position)];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		try (FileChannel channel = FileChannel.open(key.file().path(), StandardOpenOption.READ)) {
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position + buffer.position());
+				if (read < 0) {
+					throw new IOException(key.file().path() + " shrank while it was being streamed");
+				}
+			}
+		}
+		bytesRead.add(data.length);
+		return data;
+	}
+
+	private byte[] cached(SegmentKey key) {
+		synchronized (segments) {
+			return segments.get(key);
+		}
+	}
+
+	private void store(SegmentKey key, byte[] data) {
+		synchronized (segments) {
+			byte[] old = segments.put(key, data);
+			cachedBytes += data.length - (old == null ? 0 : old.length);
+			Iterator<byte[]> iterator = segments.values().iterator();
+			while (cachedBytes > maxBytes && iterator.hasNext()) {
+				cachedBytes -= iterator.next().length;
+				iterator.remove();
+			}
+		}
+	}
+
+	private byte[] await(CompletableFuture<byte[]> future) throws IOException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading a video segment", e);
+		}
+	}
+
+}
@@ -0,0 +1,544 @@
+package com.csetutorials.vuedisk.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streams ZIP archives, compressing on all cores the way pigz does. Every file is cut into blocks which are
+ * deflated independently on a shared pool, each primed with the last 32 KB of the block before it and ending on a
+ * sync flush, so the blocks simply concatenate into one deflate stream. The writer thread only puts finished
+ * blocks on the wire in order, while the pool works a bounded window ahead of it.
+ * <p>
+ * Files whose extension says they are compressed already, and every file in store mode, are stored as they are.
+ * Their CRC has to be in the local header, so it is computed by a pass over the file that also runs ahead in the
+ * window. Deflated entries carry their CRC and sizes in a data descriptor instead. Archives and entries beyond the
+ * 4 GB / 65535 entry limits are written as ZIP64.
+ */
+@Service
+@Log4j2
+public class ZipService {
+
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+	private static final ThreadLocal<ByteBuffer> INPUT_BUFFERS =
+			ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BLOCK_SIZE + DICTIONARY_SIZE));
+
+	@Autowired
+	private ExtensionService extensionService;
+
+	@Value("${vuedisk.zip.parallelism}")
+	private int parallelism;
+
+	@Value("${vuedisk.zip.level}")
+	private int level;
+
+	@Value("${vuedisk.zip.stored-extensions}")
+	private Set<String> storedExtensions;
+
+	private ExecutorService workers;
+
+	private int window;
+
+	@PostConstruct
+	public void init() {
+		int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+		workers = Executors.newFixedThreadPool(threads);
+		window = threads * 4;
+	}
+
+	@PreDestroy
+	public void destroy() {
+		workers.shutdownNow();
+	}
+
+	/**
+	 * Writes the selected files and directories, named relative to {@code sourceDir}, as a ZIP archive.
+	 *
+	 * @param store store every file uncompressed, for when the network is faster than deflate
+	 */
+	public void write(File sourceDir, List<String> files, OutputStream out, boolean store) throws IOException {
+		List<Entry> entries = collect(sourceDir.toPath().toAbsolutePath().normalize(), files, store);
+		new Writer(out).write(entries);
+	}
+
+	private List<Entry> collect(Path sourceDir, List<String> files, boolean store) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		for (String file : files) {
+			Path root = sourceDir.resolve(file).normalize();
+			if (!root.startsWith(sourceDir) || !Files.exists(root)) {
+				continue;
+			}
+			Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+					new SimpleFileVisitor<>() {
+						@Override
+						public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+							entries.add(new Entry(dir, name(sourceDir, dir) + "/", true, false, 0,
+									attrs.lastModifiedTime().toMillis()));
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+							if (!attrs.isRegularFile() || !Files.isReadable(path)) {
+								log.warn("Leaving {} out of the zip", path);
+								return FileVisitResult.CONTINUE;
+							}
+							String name = name(sourceDir, path);
+							boolean stored = store || storedExtensions.contains(extensionService.getExtension(name));
+							entries.add(new Entry(path, name, false, stored, attrs.size(),
+									attrs.lastModifiedTime().toMillis()));
+							return FileVisitResult.CONTINUE;
+						}
+
+						@Override
+						public FileVisitResult visitFileFailed(Path path, IOException e) {
+							log.warn("Leaving {} out of the zip", path, e);
+							return FileVisitResult.CONTINUE;
+						}
+					});
+		}
+		return entries;
+	}
+
+	private String name(Path sourceDir, Path path) {
+		StringJoiner joiner = new StringJoiner("/");
+		for (Path part : sourceDir.relativize(path)) {
+			joiner.add(part.toString());
+		}
+		return joiner.toString();
+	}
+
+	private static class Entry {
+
+		final Path path;
+
+		final byte[] name;
+
+		final boolean directory;
+
+		final boolean stored;
+
+		final long size;
+
+		final long lastModified;
+
+		final boolean zip64;
+
+		long offset;
+
+		long crc;
+
+		long compressedSize;
+
+		Entry(Path path, String name, boolean directory, boolean stored, long size, long lastModified) {
+			this.path = path;
+			this.name = name.getBytes(StandardCharsets.UTF_8);
+			this.directory = directory;
+			this.stored = stored || directory;
+			this.size = size;
+			this.lastModified = lastModified;
+			// Decided before the data is written, so it has to hold for the largest size deflate can produce
+			this.zip64 = (this.stored ? size : maxDeflatedSize()) >= ZIP64_LIMIT;
+		}
+
+		/**
+		 * zlib's deflateBound for incompressible input, plus the sync flush marker ending each block.
+		 */
+		long maxDeflatedSize() {
+			return size + (size >> 12) + (size >> 14) + (size >> 25) + 13 + 6L * blocks();
+		}
+
+		int blocks() {
+			return directory ? 0 : (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+		}
+
+		boolean hasDescriptor() {
+			return !stored;
+		}
+
+	}
+
+	private record Block(byte[] data, int length, long crc, long rawLength) {
+	}
+
+	/**
+	 * One step of the archive in output order. Futures are submitted when the step enters the window and awaited
+	 * when the writer gets to it.
+	 */
+	private record Step(Entry entry, int block, Future<?> result) {
+
+		static final int HEADER = -1;
+
+		static final int TRAILER = -2;
+
+	}
+
+	private class Writer {
+
+		private final OutputStream out;
+
+		private final ByteBuffer header = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+		private long written;
+
+		Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		void write(List<Entry> entries) throws IOException {
+			Iterator<Step> plan = plan(entries);
+			Deque<Step> pending = new ArrayDeque<>();
+			try {
+				while (true) {
+					while (pending.size() < window && plan.hasNext()) {
+						pending.add(submit(plan.next()));
+					}
+					Step step = pending.poll();
+					if (step == null) {
+						break;
+					}
+					write(step);
+				}
+				writeCentralDirectory(entries);
+				out.flush();
+			} finally {
+				pending.forEach(step -> {
+					if (step.result() != null) {
+						step.result().cancel(true);
+					}
+				});
+			}
+		}
+
+		private Iterator<Step> plan(List<Entry> entries) {
+			return entries.stream().flatMap(entry -> {
+				List<Step> steps = new ArrayList<>(entry.blocks() + 2);
+				steps.add(new Step(entry, Step.HEADER, null));
+				for (int i = 0; i < entry.blocks(); i++) {
+					steps.add(new Step(entry, i, null));
+				}
+				steps.add(new Step(entry, Step.TRAILER, null));
+				return steps.stream();
+			}).iterator();
+		}
+
+		private Step submit(Step step) {
+			Entry entry = step.entry();
+			if (step.block() == Step.HEADER && entry.stored && !entry.directory) {
+				return new Step(entry, step.block(), workers.submit(() -> crc(entry)));
+			}
+			if (step.block() >= 0) {
+				return new Step(entry, step.block(), workers.submit(() -> block(entry, step.block())));
+			}
+			return step;
+		}
+
+		private void write(Step step) throws IOException {
+			Entry entry = step.entry();
+			if (step.block() == Step.HEADER) {
+				if (step.result() != null) {
+					entry.crc = (Long) await(step.result());
+					entry.compressedSize = entry.size;
+				}
+				writeLocalHeader(entry);
+			} else if (step.block() == Step.TRAILER) {
+				if (entry.hasDescriptor()) {
+					writeDataDescriptor(entry);
+				}
+			} else {
+				Block block = (Block) await(step.result());
+				out.write(block.data(), 0, block.length());
+				written += block.length();
+				if (!entry.stored) {
+					entry.crc = step.block() == 0 ? block.crc() : crc32Combine(entry.crc, block.crc(), block.rawLength());
+					entry.compressedSize += block.length();
+				}
+			}
+		}
+
+		private Object await(Future<?> future) throws IOException {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while zipping", e);
+			}
+		}
+
+		private void writeLocalHeader(Entry entry) throws IOException {
+			entry.offset = written;
+			header.clear();
+			header.putInt(0x04034b50);
+			header.putShort((short) (entry.zip64 ? 45 : 20));
+			header.putShort((short) (0x0800 | (entry.hasDescriptor() ? 0x0008 : 0)));
+			header.putShort((short) (entry.stored ? 0 : 8));
+			header.putInt(dosTime(entry.lastModified));
+			if (entry.hasDescriptor()) {
+				header.putInt(0);
+				header.putInt(entry.zip64 ? -1 : 0);
+				header.putInt(entry.zip64 ? -1 : 0);
+			} else {
+				header.putInt((int) entry.crc);
+				header.putInt(entry.zip64 ? -1 : (int) entry.size);
+				header.putInt(entry.zip64 ? -1 : (int) entry.size);
+			}
+			header.putShort((short) entry.name.length);
+			header.putShort((short) (entry.zip64 ? 20 : 0));
+			header.put(entry.name);
+			if (entry.zip64) {
+				header.putShort((short) 0x0001);
+				header.putShort((short) 16);
+				header.putLong(entry.hasDescriptor() ? 0 : entry.size);
+				header.putLong(entry.hasDescriptor() ? 0 : entry.size);
+			}
+			flushHeader();
+		}
+
+		private void writeDataDescriptor(Entry entry) throws IOException {
+			header.clear();
+			header.putInt(0x08074b50);
+			header.putInt((int) entry.crc);
+			if (entry.zip64) {
+				header.putLong(entry.compressedSize);
+				header.putLong(entry.size);
+			} else {
+				header.putInt((int) entry.compressedSize);
+				header.putInt((int) entry.size);
+			}
+			flushHeader();
+		}
+
+		private void writeCentralDirectory(List<Entry> entries) throws IOException {
+			long start = written;
+			for (Entry entry : entries) {
+				boolean bigSize = entry.zip64 || entry.compressedSize >= ZIP64_LIMIT;
+				boolean bigOffset = entry.offset >= ZIP64_LIMIT;
+				int extra = (bigSize ? 16 : 0) + (bigOffset ? 8 : 0);
+				header.clear();
+				header.putInt(0x02014b50);
+				header.putShort((short) 45);
+				header.putShort((short) (extra > 0 ? 45 : 20));
+				header.putShort((short) (0x0800 | (entry.hasDescriptor() ? 0x0008 : 0)));
+				header.putShort((short) (entry.stored ? 0 : 8));
+				header.putInt(dosTime(entry.lastModified));
+				header.putInt((int) entry.crc);
+				header.putInt(bigSize ? -1 : (int) entry.compressedSize);
+				header.putInt(bigSize ? -1 : (int) entry.size);
+				header.putShort((short) entry.name.length);
+				header.putShort((short) (extra > 0 ? extra + 4 : 0));
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putShort((short) 0);
+				header.putInt(entry.directory ? 0x10 : 0);
+				header.putInt(bigOffset ? -1 : (int) entry.offset);
+				header.put(entry.name);
+				if (extra > 0) {
+					header.putShort((short) 0x0001);
+					header.putShort((short) extra);
+					if (bigSize) {
+						header.putLong(entry.size);
+						header.putLong(entry.compressedSize);
+					}
+					if (bigOffset) {
+						header.putLong(entry.offset);
+					}
+				}
+				flushHeader();
+			}
+			long size = written - start;
+			boolean zip64 = entries.size() >= 0xFFFF || start >= ZIP64_LIMIT || size >= ZIP64_LIMIT;
+			header.clear();
+			if (zip64) {
+				long recordOffset = written;
+				header.putInt(0x06064b50);
+				header.putLong(44);
+				header.putShort((short) 45);
+				header.putShort((short) 45);
+				header.putInt(0);
+				header.putInt(0);
+				header.putLong(entries.size());
+				header.putLong(entries.size());
+				header.putLong(size);
+				header.putLong(start);
+				header.putInt(0x07064b50);
+				header.putInt(0);
+				header.putLong(recordOffset);
+				header.putInt(1);
+			}
+			header.putInt(0x06054b50);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) Math.min(entries.size(), 0xFFFF));
+			header.putShort((short) Math.min(entries.size(), 0xFFFF));
+			header.putInt(zip64 ? -1 : (int) size);
+			header.putInt(zip64 ? -1 : (int) start);
+			header.putShort((short) 0);
+			flushHeader();
+		}
+
+		private void flushHeader() throws IOException {
+			out.write(header.array(), 0, header.position());
+			written += header.position();
+		}
+
+	}
+
+	private long crc(Entry entry) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = INPUT_BUFFERS.get();
+		try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+			long position = 0;
+			while (position < entry.size) {
+				buffer.clear().limit((int) Math.min(buffer.capacity(), entry.size - position));
+				read(channel, buffer, position, entry);
+				buffer.flip();
+				position += buffer.remaining();
+				crc.update(buffer);
+			}
+		}
+		return crc.getValue();
+	}
+
+	private Block block(Entry entry, int index) throws IOException {
+		long start = (long) index * BLOCK_SIZE;
+		int length = (int) Math.min(BLOCK_SIZE, entry.size - start);
+		int dictionary = entry.stored ? 0 : (int) Math.min(DICTIONARY_SIZE, start);
+		ByteBuffer buffer = INPUT_BUFFERS.get();
+		buffer.clear().limit(dictionary + length);
+		try (FileChannel channel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+			read(channel, buffer, start - dictionary, entry);
+		}
+		buffer.flip();
+		if (entry.stored) {
+			byte[] data = new byte[length];
+			buffer.get(data);
+			return new Block(data, length, 0, length);
+		}
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary > 0) {
+				deflater.setDictionary(buffer.slice(0, dictionary));
+			}
+			crc.update(buffer.slice(dictionary, length));
+			buffer.position(dictionary);
+			deflater.setInput(buffer);
+			boolean last = start + length >= entry.size;
+			if (last) {
+				deflater.finish();
+			}
+			byte[] data = new byte[length + (length >> 12) + (length >> 14) + 64];
+			int size = 0;
+			while (true) {
+				size += deflater.deflate(data, size, data.length - size, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				if (last ? deflater.finished() : size < data.length) {
+					break;
+				}
+				if (size == data.length) {
+					data = Arrays.copyOf(data, data.length * 2);
+				}
+			}
+			return new Block(data, size, crc.getValue(), length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void read(FileChannel channel, ByteBuffer buffer, long position, Entry entry) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException(entry.path + " shrank while it was being zipped");
+			}
+			position += read;
+		}
+	}
+
+	private static int dosTime(long millis) {
+		LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+		if (time.getYear() < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+				| time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+	}
+
+	/**
+	 * CRC of two concatenated pieces from the CRCs of the pieces, as zlib's {@code crc32_combine} does it.
+	 */
+	static long crc32Combine(long crc1, long crc2, long length2) {
+		if (length2 <= 0) {
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		odd[0] = 0xedb88320L;
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(even, crc1);
+			}
+			length2 >>= 1;
+			if (length2 == 0) {
+				break;
+			}
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0) {
+				crc1 = gf2MatrixTimes(odd, crc1);
+			}
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(long[] matrix, long vector) {
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(long[] square, long[] matrix) {
+		for (int n = 0; n < 32; n++) {
+			square[n] = gf2MatrixTimes(matrix, matrix[n]);
+		}
+	}
+
+}